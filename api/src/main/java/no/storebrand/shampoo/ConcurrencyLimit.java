@@ -0,0 +1,62 @@
+package no.storebrand.shampoo;
+
+import java.time.Duration;
+
+/**
+ * Settings of the AIMD algorithm of {@link ConcurrencyLimitedSoapClient}.
+ *
+ * The limit grows by one for about every limit calls which succeed within {@link #latencyThreshold}, as long as
+ * the calls in flight use at least half of the limit. It is multiplied by {@link #backoffRatio} for every call which
+ * fails to connect, fails in the transport, times out, is answered with HTTP 503, or takes longer than
+ * {@link #latencyThreshold}. The limit stays between
+ * {@link #minLimit} and {@link #maxLimit}.
+ */
+public final class ConcurrencyLimit {
+    public static final ConcurrencyLimit DEFAULT = new ConcurrencyLimit(20, 1, 200, 0.9, Duration.ofSeconds(5));
+
+    public final int initialLimit;
+    public final int minLimit;
+    public final int maxLimit;
+    public final double backoffRatio;
+    public final Duration latencyThreshold;
+
+    private ConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, double backoffRatio, Duration latencyThreshold) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+        }
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyThreshold = latencyThreshold;
+    }
+
+    public ConcurrencyLimit withLimits(int initialLimit, int minLimit, int maxLimit) {
+        return new ConcurrencyLimit(initialLimit, minLimit, maxLimit, backoffRatio, latencyThreshold);
+    }
+
+    public ConcurrencyLimit withBackoffRatio(double backoffRatio) {
+        return new ConcurrencyLimit(initialLimit, minLimit, maxLimit, backoffRatio, latencyThreshold);
+    }
+
+    /**
+     * Calls slower than this are taken as a sign of an overloaded backend. Set it well above the normal latency.
+     */
+    public ConcurrencyLimit withLatencyThreshold(Duration latencyThreshold) {
+        return new ConcurrencyLimit(initialLimit, minLimit, maxLimit, backoffRatio, latencyThreshold);
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimit{" +
+                "initialLimit=" + initialLimit +
+                ", minLimit=" + minLimit +
+                ", maxLimit=" + maxLimit +
+                ", backoffRatio=" + backoffRatio +
+                ", latencyThreshold=" + latencyThreshold +
+                '}';
+    }
+}
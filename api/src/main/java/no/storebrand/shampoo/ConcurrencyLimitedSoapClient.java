@@ -0,0 +1,180 @@
+package no.storebrand.shampoo;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A {@link SoapClient} which limits the calls in flight to the client it decorates, and so to its endpoint, with a
+ * limit which adapts to the latency and failures of the calls, as set by {@link ConcurrencyLimit}.
+ *
+ * A call over the limit is not queued, but fails at once with a {@link SoapFault#overloaded(String)} fault, so that
+ * callers see the latency of the backend, rather than the time spent waiting for it.
+ */
+public final class ConcurrencyLimitedSoapClient implements SoapClient {
+    private final SoapClient client;
+    private final ConcurrencyLimit limit;
+    private final Function<SoapAction, String> key;
+    private final ConcurrentMap<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+    private ConcurrencyLimitedSoapClient(SoapClient client, ConcurrencyLimit limit, Function<SoapAction, String> key) {
+        this.client = client;
+        this.limit = limit;
+        this.key = key;
+    }
+
+    /**
+     * One limit for all the calls of {@code client}.
+     */
+    public static ConcurrencyLimitedSoapClient perEndpoint(SoapClient client, ConcurrencyLimit limit) {
+        return new ConcurrencyLimitedSoapClient(client, limit, action -> "");
+    }
+
+    /**
+     * A limit for each {@link SoapAction}, for backends where some operations are much slower than others.
+     */
+    public static ConcurrencyLimitedSoapClient perAction(SoapClient client, ConcurrencyLimit limit) {
+        return new ConcurrencyLimitedSoapClient(client, limit, action -> action.action);
+    }
+
+    @Override
+    public Result<SoapFault, SoapDocument> execute(SoapRequest req) {
+        Limiter limiter = limiter(req.action);
+        if (!limiter.tryAcquire()) {
+            return Result.failure(limiter.rejected(req));
+        }
+        long start = System.nanoTime();
+        Result<SoapFault, SoapDocument> result = Result.failure(SoapFault.client("Call did not complete"));
+        try {
+            result = client.execute(req);
+            return result;
+        } finally {
+            limiter.release(System.nanoTime() - start, result);
+        }
+    }
+
+    @Override
+    public CompletionStage<Result<SoapFault, SoapDocument>> executeAsync(SoapRequest req) {
+        Limiter limiter = limiter(req.action);
+        if (!limiter.tryAcquire()) {
+            return CompletableFuture.completedFuture(Result.failure(limiter.rejected(req)));
+        }
+        long start = System.nanoTime();
+        CompletionStage<Result<SoapFault, SoapDocument>> stage;
+        try {
+            stage = client.executeAsync(req);
+        } catch (RuntimeException e) {
+            limiter.release(System.nanoTime() - start, Result.failure(SoapFault.fromThrowable("soap:Client", e)));
+            throw e;
+        }
+        // the permit is released when the call completes, and not by a dependent stage, which would skip its action
+        // once the stage returned to the caller is cancelled
+        CompletableFuture<Result<SoapFault, SoapDocument>> call = stage.toCompletableFuture();
+        CompletableFuture<Result<SoapFault, SoapDocument>> released = new CompletableFuture<>();
+        call.whenComplete((result, e) -> {
+            limiter.release(System.nanoTime() - start, result != null ? result : Result.failure(SoapFault.fromThrowable("soap:Client", e)));
+            if (e != null) {
+                released.completeExceptionally(e);
+            } else {
+                released.complete(result);
+            }
+        });
+        // cancelling the returned stage, such as a hedge which lost, cancels the call and so releases its permit
+        released.whenComplete((result, e) -> {
+            if (released.isCancelled()) {
+                call.cancel(true);
+            }
+        });
+        return released;
+    }
+
+    /**
+     * The current limit for calls of {@code action}, which for {@link #perEndpoint} is the same for every action.
+     */
+    public int limit(SoapAction action) {
+        return limiter(action).limit();
+    }
+
+    public int inFlight(SoapAction action) {
+        return limiter(action).inFlight.get();
+    }
+
+    private Limiter limiter(SoapAction action) {
+        return limiters.computeIfAbsent(key.apply(action), k -> new Limiter(limit));
+    }
+
+    private static final class Limiter {
+        private final ConcurrencyLimit settings;
+        private final long thresholdNanos;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        // the fractional limit as the bits of a double, updated without locks
+        private final AtomicLong limit;
+
+        Limiter(ConcurrencyLimit settings) {
+            this.settings = settings;
+            this.thresholdNanos = settings.latencyThreshold.toNanos();
+            this.limit = new AtomicLong(Double.doubleToLongBits(settings.initialLimit));
+        }
+
+        int limit() {
+            return (int) Double.longBitsToDouble(limit.get());
+        }
+
+        boolean tryAcquire() {
+            while (true) {
+                int current = inFlight.get();
+                if (current >= limit()) {
+                    return false;
+                }
+                if (inFlight.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        SoapFault rejected(SoapRequest req) {
+            return SoapFault.overloaded("Concurrency limit of " + limit() + " reached for " + req.action.action);
+        }
+
+        void release(long nanos, Result<SoapFault, SoapDocument> result) {
+            int current = inFlight.getAndDecrement();
+            boolean dropped = nanos > thresholdNanos || result.swap().exists(Limiter::isOverload);
+            while (true) {
+                long bits = limit.get();
+                double value = Double.longBitsToDouble(bits);
+                double next;
+                if (dropped) {
+                    next = Math.max(settings.minLimit, value * settings.backoffRatio);
+                } else if (current * 2 >= value) {
+                    next = Math.min(settings.maxLimit, value + 1 / value);
+                } else {
+                    return;
+                }
+                if (next == value || limit.compareAndSet(bits, Double.doubleToLongBits(next))) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * A failure to reach the backend, a timeout or a 503 is taken as overload. A fault returned by the backend,
+         * another HTTP status, or a failure to build the request is not.
+         */
+        private static boolean isOverload(SoapFault fault) {
+            switch (fault.kind()) {
+                case CONNECT:
+                case TRANSPORT:
+                case TIMEOUT:
+                    return true;
+                case HTTP_STATUS:
+                    return ((HttpStatusException) fault.cause.get()).statusCode == 503;
+                default:
+                    return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package no.storebrand.shampoo;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces the {@link SoapRequest#deadline} of a call, by running an action which aborts the call, such as cancelling
+ * it or closing its connection, if the deadline passes before the timer is closed.
+ *
+ * All timers share one daemon thread, so the actions must be quick and must not block.
+ */
+public final class DeadlineTimer implements AutoCloseable {
+    private static final DeadlineTimer NONE = new DeadlineTimer();
+
+    private volatile boolean expired;
+    private volatile Optional<ScheduledFuture<?>> task = Optional.empty();
+
+    private DeadlineTimer() {
+    }
+
+    /**
+     * A timer for a request whose deadline has already passed is expired at once, and does not run the action,
+     * so the call should fail with {@link #fault(Throwable)} without being started.
+     */
+    public static DeadlineTimer start(SoapRequest req, Runnable onExpiry) {
+        if (!req.remaining().isPresent()) {
+            return NONE;
+        }
+        Duration remaining = req.remaining().get();
+        DeadlineTimer timer = new DeadlineTimer();
+        if (remaining.isZero()) {
+            timer.expired = true;
+            return timer;
+        }
+        long millis = remaining.getSeconds() >= Long.MAX_VALUE / 1000 ? Long.MAX_VALUE : remaining.toMillis();
+        timer.task = Optional.of(SoapScheduler.INSTANCE.schedule(() -> {
+            timer.expired = true;
+            onExpiry.run();
+        }, Math.max(millis, 1), TimeUnit.MILLISECONDS));
+        return timer;
+    }
+
+    /**
+     * True when the deadline had passed before the call was started, or when the action has been run.
+     * A call which fails after this failed because it was aborted, even if it failed while parsing the response.
+     */
+    public boolean isExpired() {
+        return expired;
+    }
+
+    /**
+     * Replaces a failure of an aborted call with the fault of {@link #fault(Throwable)}, and records it as timed out.
+     * An aborted call may also fail as a response which could not be parsed.
+     */
+    public <A> Result<SoapFault, A> check(SoapCallRecorder recorder, Result<SoapFault, A> result) {
+        if (expired && result.isFailure()) {
+            recorder.timedOut();
+            return Result.failure(fault(result.swap().toOptional().flatMap(f -> f.cause).orElse(null)));
+        }
+        return result;
+    }
+
+    /**
+     * The fault for a call which failed because the deadline passed.
+     *
+     * @param cause the exception the aborted call failed with, or null if the call was not started
+     */
+    public static SoapFault fault(Throwable cause) {
+        InterruptedIOException e = new InterruptedIOException("Deadline exceeded");
+        e.initCause(cause);
+        return SoapFault.fromThrowable("soap:Client", e);
+    }
+
+    @Override
+    public void close() {
+        task.ifPresent(t -> t.cancel(false));
+    }
+}
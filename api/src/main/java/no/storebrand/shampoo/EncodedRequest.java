@@ -0,0 +1,85 @@
+package no.storebrand.shampoo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The envelope of a {@link SoapRequest} serialized to UTF-8, with the Content-Type and SOAPAction header values.
+ *
+ * Immutable, so it can be sent any number of times from any number of threads, for instance when a request is
+ * fanned out, retried or hedged, without serializing the envelope again. The gzip compressed envelope is likewise
+ * computed once, when it is first sent compressed, and kept.
+ */
+public final class EncodedRequest {
+    public final String contentType;
+    public final String soapAction;
+    private final byte[] envelope;
+    private volatile byte[] gzipped;
+
+    private EncodedRequest(String contentType, String soapAction, byte[] envelope) {
+        this.contentType = contentType;
+        this.soapAction = soapAction;
+        this.envelope = envelope;
+    }
+
+    static EncodedRequest encode(SoapDocument document, SoapAction action) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            document.write(output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        String contentType = document.ns.equals(SoapDocument.SOAP_12) ? "application/soap+xml" : "text/xml; charset=utf-8";
+        return new EncodedRequest(contentType, action.format(), output.toByteArray());
+    }
+
+    public int size() {
+        return envelope.length;
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+        stream.write(envelope);
+    }
+
+    public InputStream newInputStream() {
+        return new ByteArrayInputStream(envelope);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(envelope, envelope.length);
+    }
+
+    public int gzippedSize() {
+        return gzipped().length;
+    }
+
+    public void writeGzippedTo(OutputStream stream) throws IOException {
+        stream.write(gzipped());
+    }
+
+    public InputStream newGzippedInputStream() {
+        return new ByteArrayInputStream(gzipped());
+    }
+
+    private byte[] gzipped() {
+        byte[] result = gzipped;
+        if (result == null) {
+            // threads sending the request at once may each compress it, which is harmless
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (GZIPOutputStream compressing = new GZIPOutputStream(output)) {
+                compressing.write(envelope);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            result = output.toByteArray();
+            gzipped = result;
+        }
+        return result;
+    }
+}
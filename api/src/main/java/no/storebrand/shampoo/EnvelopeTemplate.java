@@ -0,0 +1,109 @@
+package no.storebrand.shampoo;
+
+import org.jdom2.Namespace;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * An envelope with a fixed set of headers, such as security tokens or routing headers, shared by many requests.
+ *
+ * The envelope up to and including the static headers, and the markup around the body, is encoded once when the
+ * template is created. Documents created from the template only serialize their dynamic headers and body when written.
+ * The template is immutable and may be shared between threads.
+ */
+public final class EnvelopeTemplate {
+    public final Namespace ns;
+    public final List<SoapHeader> staticHeader;
+
+    private final byte[] prologue;
+    private final byte[] bodyStart;
+    private final byte[] epilogue;
+
+    private EnvelopeTemplate(Namespace ns, List<SoapHeader> staticHeader) {
+        this.ns = ns;
+        // copied, so that later changes to the elements can not make the encoded prologue stale
+        this.staticHeader = Collections.unmodifiableList(staticHeader.stream()
+                .map(h -> new SoapHeader(h.element.clone()))
+                .collect(Collectors.toList()));
+        String prefix = ns.getPrefix();
+        StringWriter writer = new StringWriter();
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n");
+        writer.write("<" + prefix + ":Envelope xmlns:" + prefix + "=\"" + ns.getURI() + "\">");
+        writer.write("<" + prefix + ":Header>");
+        try {
+            for (SoapHeader h : this.staticHeader) {
+                SoapDocument.COMPACT.output(h.element, writer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.prologue = writer.toString().getBytes(StandardCharsets.UTF_8);
+        this.bodyStart = ("</" + prefix + ":Header><" + prefix + ":Body>").getBytes(StandardCharsets.UTF_8);
+        this.epilogue = ("</" + prefix + ":Body></" + prefix + ":Envelope>\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static EnvelopeTemplate soap11(List<SoapHeader> staticHeader) {
+        return new EnvelopeTemplate(SoapDocument.SOAP_11, staticHeader);
+    }
+
+    public static EnvelopeTemplate soap12(List<SoapHeader> staticHeader) {
+        return new EnvelopeTemplate(SoapDocument.SOAP_12, staticHeader);
+    }
+
+    public SoapDocument document(SoapBody body) {
+        return document(Collections.emptyList(), body);
+    }
+
+    /**
+     * @param dynamicHeader headers written after the static headers, serialized every time the document is written.
+     */
+    public SoapDocument document(List<SoapHeader> dynamicHeader, SoapBody body) {
+        List<SoapHeader> header = new ArrayList<>(staticHeader.size() + dynamicHeader.size());
+        header.addAll(staticHeader);
+        header.addAll(dynamicHeader);
+        return SoapDocument.fromTemplate(this, Collections.unmodifiableList(header), body);
+    }
+
+    public SoapRequest request(SoapBody body, SoapAction action) {
+        return SoapRequest.of(document(body), action);
+    }
+
+    public SoapRequest request(SoapBody body, List<SoapHeader> dynamicHeader, SoapAction action) {
+        return SoapRequest.of(document(dynamicHeader, body), action);
+    }
+
+    void write(SoapDocument document, OutputStream stream) throws IOException {
+        // the writer is flushed before each cached part, which must not flush the underlying stream
+        Writer writer = new OutputStreamWriter(new NonFlushingOutputStream(stream), StandardCharsets.UTF_8);
+        stream.write(prologue);
+        for (SoapHeader h : document.header.subList(staticHeader.size(), document.header.size())) {
+            SoapDocument.COMPACT.output(h.element, writer);
+        }
+        writer.flush();
+        stream.write(bodyStart);
+        SoapDocument.COMPACT.output(document.body.body, writer);
+        writer.flush();
+        stream.write(epilogue);
+        stream.flush();
+    }
+
+    private static final class NonFlushingOutputStream extends FilterOutputStream {
+        NonFlushingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+}
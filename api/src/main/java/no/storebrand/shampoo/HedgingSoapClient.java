@@ -0,0 +1,228 @@
+package no.storebrand.shampoo;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * A {@link SoapClient} which sends a second copy of an idempotent request, a hedge, when the first has not answered
+ * within a percentile of the recent latency of its {@link SoapAction}. The first successful result is returned, and
+ * the other call is cancelled.
+ *
+ * Hedges are only sent once {@link #WINDOW_SIZE} / 4 calls of an action have succeeded, and at most
+ * {@link #withBudget(double) budget} hedges are sent per call on average. The request is encoded once and the same
+ * bytes are sent by both calls. A call which fails before its hedge is sent is not hedged.
+ *
+ * Hedges are sent on the {@link #withExecutor(Executor) executor}, and not on the shared timer thread of the client,
+ * which only hands them off.
+ */
+public final class HedgingSoapClient implements SoapClient {
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final double DEFAULT_BUDGET = 0.1;
+    public static final Duration DEFAULT_MIN_DELAY = Duration.ofMillis(10);
+    static final int WINDOW_SIZE = 256;
+
+    private final SoapClient client;
+    private final Predicate<SoapAction> idempotent;
+    private final double percentile;
+    private final double budget;
+    private final Duration minDelay;
+    private final Executor executor;
+    private final TokenBucket tokens;
+    private final ConcurrentMap<String, LatencyWindow> windows = new ConcurrentHashMap<>();
+
+    private HedgingSoapClient(SoapClient client, Predicate<SoapAction> idempotent, double percentile, double budget, Duration minDelay, Executor executor) {
+        this.client = client;
+        this.idempotent = idempotent;
+        this.percentile = percentile;
+        this.budget = budget;
+        this.minDelay = minDelay;
+        this.executor = executor;
+        this.tokens = new TokenBucket(budget, 10, 0);
+    }
+
+    /**
+     * @param idempotent whether the calls of an action can safely be made twice, such as lookups
+     */
+    public static HedgingSoapClient of(SoapClient client, Predicate<SoapAction> idempotent) {
+        return new HedgingSoapClient(client, idempotent, DEFAULT_PERCENTILE, DEFAULT_BUDGET, DEFAULT_MIN_DELAY, ForkJoinPool.commonPool());
+    }
+
+    public static HedgingSoapClient of(SoapClient client, SoapAction... idempotent) {
+        List<SoapAction> actions = Arrays.asList(idempotent.clone());
+        return of(client, actions::contains);
+    }
+
+    /**
+     * @param percentile of the latency after which a hedge is sent, such as 0.95 to hedge the slowest 5% of calls
+     */
+    public HedgingSoapClient withPercentile(double percentile) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1");
+        }
+        return new HedgingSoapClient(client, idempotent, percentile, budget, minDelay, executor);
+    }
+
+    /**
+     * @param budget the hedges sent per call, such as 0.1 to add at most 10% to the load of the backend
+     */
+    public HedgingSoapClient withBudget(double budget) {
+        if (budget < 0 || budget > 1) {
+            throw new IllegalArgumentException("budget must be between 0 and 1");
+        }
+        return new HedgingSoapClient(client, idempotent, percentile, budget, minDelay, executor);
+    }
+
+    /**
+     * A hedge is never sent sooner than this, even if most calls are faster.
+     */
+    public HedgingSoapClient withMinDelay(Duration minDelay) {
+        return new HedgingSoapClient(client, idempotent, percentile, budget, minDelay, executor);
+    }
+
+    /**
+     * Sends the hedges, which is the common {@link ForkJoinPool} by default. A decorated client which blocks in
+     * {@link SoapClient#executeAsync(SoapRequest)}, such as {@code UrlConnectionSoapClient} without an executor,
+     * holds a thread of it for the whole hedge.
+     */
+    public HedgingSoapClient withExecutor(Executor executor) {
+        return new HedgingSoapClient(client, idempotent, percentile, budget, minDelay, executor);
+    }
+
+    @Override
+    public Result<SoapFault, SoapDocument> execute(SoapRequest req) {
+        if (!idempotent.test(req.action)) {
+            return client.execute(req);
+        }
+        return executeAsync(req).toCompletableFuture().join();
+    }
+
+    @Override
+    public CompletionStage<Result<SoapFault, SoapDocument>> executeAsync(SoapRequest req) {
+        if (!idempotent.test(req.action)) {
+            return client.executeAsync(req);
+        }
+        SoapRequest encoded = req.encode();
+        LatencyWindow window = windows.computeIfAbsent(req.action.action, action -> new LatencyWindow(percentile));
+        tokens.deposit();
+        CompletableFuture<Result<SoapFault, SoapDocument>> result = new CompletableFuture<>();
+        List<CompletableFuture<?>> calls = new CopyOnWriteArrayList<>();
+        // the calls which may still complete the result, including a hedge which may still be sent
+        AtomicInteger pending = new AtomicInteger(1);
+        // the latency of each call is measured from when it was sent, as the delay of a hedge which won is not latency
+        // of the backend, and recording it would make hedges fire later and later
+        BiConsumer<CompletableFuture<Result<SoapFault, SoapDocument>>, Long> track = (call, sent) -> {
+            calls.add(call);
+            if (result.isDone()) {
+                // the other call won while this one was sent
+                call.cancel(true);
+            }
+            call.whenComplete((r, e) -> {
+                Result<SoapFault, SoapDocument> res = r != null ? r : Result.failure(SoapFault.fromThrowable("soap:Client", e));
+                if (res.isSuccess()) {
+                    // recorded before the result completes, so that the next call of the caller sees it
+                    if (!result.isDone()) {
+                        window.record(System.nanoTime() - sent);
+                    }
+                    result.complete(res);
+                } else if (pending.decrementAndGet() == 0) {
+                    result.complete(res);
+                }
+            });
+        };
+        long sent = System.nanoTime();
+        track.accept(send(encoded), sent);
+        long delay = window.percentileNanos();
+        if (delay >= 0 && !result.isDone()) {
+            ScheduledFuture<?> hedge = SoapScheduler.INSTANCE.schedule(() -> {
+                if (result.isDone() || !tokens.tryWithdraw()) {
+                    return;
+                }
+                pending.incrementAndGet();
+                if (result.isDone()) {
+                    pending.decrementAndGet();
+                    return;
+                }
+                // the timer thread also fires the deadlines of all calls, so it only hands the hedge off
+                try {
+                    executor.execute(() -> {
+                        long hedgeSent = System.nanoTime();
+                        track.accept(send(encoded), hedgeSent);
+                    });
+                } catch (RejectedExecutionException e) {
+                    track.accept(CompletableFuture.completedFuture(Result.failure(SoapFault.fromThrowable("soap:Client", e))), System.nanoTime());
+                }
+            }, Math.max(delay, minDelay.toNanos()), TimeUnit.NANOSECONDS);
+            result.whenComplete((r, e) -> hedge.cancel(false));
+        }
+        result.whenComplete((r, e) -> calls.forEach(call -> call.cancel(true)));
+        return result;
+    }
+
+    /**
+     * The latency percentile of the action, or -1 until enough calls have been recorded.
+     */
+    long percentileNanos(SoapAction action) {
+        LatencyWindow window = windows.get(action.action);
+        return window == null ? -1 : window.percentileNanos();
+    }
+
+    private CompletableFuture<Result<SoapFault, SoapDocument>> send(SoapRequest req) {
+        try {
+            return client.executeAsync(req).toCompletableFuture();
+        } catch (RuntimeException e) {
+            return CompletableFuture.completedFuture(Result.failure(SoapFault.fromThrowable("soap:Client", e)));
+        }
+    }
+
+    /**
+     * The latency of the last {@link #WINDOW_SIZE} successful calls, with the percentile recomputed every 32 calls.
+     */
+    private static final class LatencyWindow {
+        private final double percentile;
+        private final AtomicLongArray samples = new AtomicLongArray(WINDOW_SIZE);
+        private final AtomicLong count = new AtomicLong();
+        private volatile long percentileNanos = -1;
+
+        LatencyWindow(double percentile) {
+            this.percentile = percentile;
+        }
+
+        /**
+         * -1 until enough calls have been recorded.
+         */
+        long percentileNanos() {
+            return percentileNanos;
+        }
+
+        void record(long nanos) {
+            long n = count.getAndIncrement();
+            samples.set((int) (n % WINDOW_SIZE), nanos);
+            long recorded = n + 1;
+            if (recorded >= WINDOW_SIZE / 4 && recorded % 32 == 0) {
+                int filled = (int) Math.min(recorded, WINDOW_SIZE);
+                long[] sorted = new long[filled];
+                for (int i = 0; i < filled; i++) {
+                    sorted[i] = samples.get(i);
+                }
+                Arrays.sort(sorted);
+                percentileNanos = sorted[(int) Math.min(filled - 1, Math.ceil(percentile * filled) - 1)];
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package no.storebrand.shampoo;
+
+import java.io.IOException;
+
+/**
+ * The cause of a fault for an error response which does not contain a SOAP Fault, such as a 503 from a proxy.
+ */
+public final class HttpStatusException extends IOException {
+    public final int statusCode;
+
+    public HttpStatusException(int statusCode) {
+        super("HTTP status " + statusCode);
+        this.statusCode = statusCode;
+    }
+}
@@ -0,0 +1,109 @@
+package no.storebrand.shampoo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A lock-free log-linear histogram of durations in nanoseconds.
+ *
+ * Each power of two is split into {@value #SUB_BUCKETS} linear buckets, so a recorded value is off by at most
+ * 12.5%, in a fixed array covering every positive long. Recording is one atomic increment and never allocates.
+ * A {@link Snapshot} may be taken concurrently with recording, in which case it may miss the latest values.
+ */
+public final class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        counts.incrementAndGet(index(nanos));
+        max.accumulate(nanos);
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, max.get());
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The largest value which falls in the bucket.
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        public final long count;
+        public final long maxNanos;
+
+        private Snapshot(long[] counts, long count, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.maxNanos = maxNanos;
+        }
+
+        /**
+         * The value at or below which {@code percentile} percent of the recorded values fall,
+         * as the upper bound of its bucket. Returns 0 if nothing is recorded.
+         */
+        public long percentileNanos(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100");
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        public double percentile(double percentile, TimeUnit unit) {
+            return (double) percentileNanos(percentile) / unit.toNanos(1);
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "count=" + count +
+                    ", p50=" + percentileNanos(50) +
+                    ", p99=" + percentileNanos(99) +
+                    ", max=" + maxNanos +
+                    '}';
+        }
+    }
+}
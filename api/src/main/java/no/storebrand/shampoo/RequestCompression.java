@@ -0,0 +1,48 @@
+package no.storebrand.shampoo;
+
+/**
+ * Whether clients send request bodies gzip compressed, with {@code Content-Encoding: gzip}.
+ *
+ * Off by default, as not every SOAP server accepts compressed requests. Bodies smaller than the threshold are sent
+ * as is, since compressing them costs more than it saves. Bodies too large to be buffered by the client are always
+ * compressed, as they are streamed before their size is known.
+ */
+public final class RequestCompression {
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    public static final RequestCompression NONE = new RequestCompression(false, Long.MAX_VALUE);
+
+    public final boolean enabled;
+    public final long threshold;
+
+    private RequestCompression(boolean enabled, long threshold) {
+        this.enabled = enabled;
+        this.threshold = threshold;
+    }
+
+    public static RequestCompression gzip() {
+        return gzip(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold the smallest uncompressed body, in bytes, which is compressed
+     */
+    public static RequestCompression gzip(long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        return new RequestCompression(true, threshold);
+    }
+
+    /**
+     * @param contentLength the size of the uncompressed body, or -1 if it is streamed
+     */
+    public boolean compress(long contentLength) {
+        return enabled && (contentLength == -1 || contentLength >= threshold);
+    }
+
+    @Override
+    public String toString() {
+        return enabled ? "RequestCompression{gzip, threshold=" + threshold + "}" : "RequestCompression{none}";
+    }
+}
@@ -0,0 +1,107 @@
+package no.storebrand.shampoo;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * When and how often {@link RetryingSoapClient} retries a call.
+ *
+ * Faults where the request was not sent, {@link SoapFault.Kind#CONNECT} and {@link SoapFault.Kind#OVERLOADED}, are
+ * always retried. Faults where the request may have been processed, {@link SoapFault.Kind#TRANSPORT},
+ * {@link SoapFault.Kind#TIMEOUT} and a 502, 503 or 504 {@link SoapFault.Kind#HTTP_STATUS}, are only retried for
+ * idempotent actions. SOAP Faults returned by the backend are never retried.
+ *
+ * The delay before a retry is drawn at random between zero and an exponentially growing backoff, so that callers
+ * which failed at the same time do not retry at the same time.
+ */
+public final class RetryPolicy {
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, Duration.ofMillis(50), Duration.ofSeconds(2), 0.1, action -> false);
+
+    public final int maxAttempts;
+    public final Duration initialBackoff;
+    public final Duration maxBackoff;
+    public final double budget;
+    private final Predicate<SoapAction> idempotent;
+
+    private RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff, double budget, Predicate<SoapAction> idempotent) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        if (budget < 0 || budget > 1) {
+            throw new IllegalArgumentException("budget must be between 0 and 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.budget = budget;
+        this.idempotent = idempotent;
+    }
+
+    /**
+     * @param maxAttempts including the first call
+     */
+    public RetryPolicy withMaxAttempts(int maxAttempts) {
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, budget, idempotent);
+    }
+
+    /**
+     * The backoff doubles for each retry, from {@code initialBackoff} up to {@code maxBackoff}.
+     */
+    public RetryPolicy withBackoff(Duration initialBackoff, Duration maxBackoff) {
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, budget, idempotent);
+    }
+
+    /**
+     * @param budget the retries per call, such as 0.1 to add at most 10% to the load of a failing backend,
+     *               in addition to a reserve of 10 retries
+     */
+    public RetryPolicy withBudget(double budget) {
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, budget, idempotent);
+    }
+
+    /**
+     * @param idempotent whether the calls of an action can safely be made twice, such as lookups
+     */
+    public RetryPolicy withIdempotent(Predicate<SoapAction> idempotent) {
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, budget, idempotent);
+    }
+
+    public boolean isRetryable(SoapAction action, SoapFault fault) {
+        switch (fault.kind()) {
+            case CONNECT:
+            case OVERLOADED:
+                return true;
+            case TRANSPORT:
+            case TIMEOUT:
+                return idempotent.test(action);
+            case HTTP_STATUS:
+                int statusCode = ((HttpStatusException) fault.cause.get()).statusCode;
+                return (statusCode == 502 || statusCode == 503 || statusCode == 504) && idempotent.test(action);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The delay before retry number {@code retry}, starting from 1.
+     */
+    public Duration backoff(int retry) {
+        long max = initialBackoff.toNanos();
+        for (int i = 1; i < retry && max < maxBackoff.toNanos(); i++) {
+            max *= 2;
+        }
+        max = Math.min(max, maxBackoff.toNanos());
+        return Duration.ofNanos(max > 0 ? ThreadLocalRandom.current().nextLong(max + 1) : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{" +
+                "maxAttempts=" + maxAttempts +
+                ", initialBackoff=" + initialBackoff +
+                ", maxBackoff=" + maxBackoff +
+                ", budget=" + budget +
+                '}';
+    }
+}
@@ -0,0 +1,128 @@
+package no.storebrand.shampoo;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SoapClient} which retries calls that failed with a fault the {@link RetryPolicy} deems retryable.
+ *
+ * The request is encoded once, and every attempt sends the same bytes. Retries are limited by a budget shared by all
+ * calls of the client, so that a backend which is down does not get a multiple of its normal load, and are not made
+ * when the deadline of the request would pass before the retry. The fault of the last attempt is returned.
+ *
+ * Asynchronous retries are started on the {@link #withExecutor(Executor) executor}, and not on the shared timer thread
+ * of the client, which only hands them off.
+ */
+public final class RetryingSoapClient implements SoapClient {
+    private final SoapClient client;
+    private final RetryPolicy policy;
+    private final Executor executor;
+    private final TokenBucket budget;
+
+    private RetryingSoapClient(SoapClient client, RetryPolicy policy, Executor executor) {
+        this.client = client;
+        this.policy = policy;
+        this.executor = executor;
+        this.budget = new TokenBucket(policy.budget, 10, 10);
+    }
+
+    public static RetryingSoapClient of(SoapClient client, RetryPolicy policy) {
+        return new RetryingSoapClient(client, policy, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Starts the asynchronous retries, which is the common {@link ForkJoinPool} by default. A decorated client which
+     * blocks in {@link SoapClient#executeAsync(SoapRequest)}, such as {@code UrlConnectionSoapClient} without an
+     * executor, holds a thread of it for the whole retry.
+     */
+    public RetryingSoapClient withExecutor(Executor executor) {
+        return new RetryingSoapClient(client, policy, executor);
+    }
+
+    @Override
+    public Result<SoapFault, SoapDocument> execute(SoapRequest req) {
+        SoapRequest encoded = encode(req);
+        budget.deposit();
+        Result<SoapFault, SoapDocument> result = client.execute(encoded);
+        for (int retry = 1; retry < policy.maxAttempts; retry++) {
+            Duration backoff = policy.backoff(retry);
+            if (!shouldRetry(encoded, result, backoff)) {
+                return result;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(backoff.toNanos());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return result;
+            }
+            result = client.execute(encoded);
+        }
+        return result;
+    }
+
+    @Override
+    public CompletionStage<Result<SoapFault, SoapDocument>> executeAsync(SoapRequest req) {
+        SoapRequest encoded = encode(req);
+        budget.deposit();
+        CompletableFuture<Result<SoapFault, SoapDocument>> result = new CompletableFuture<>();
+        attempt(encoded, 1, result);
+        return result;
+    }
+
+    private void attempt(SoapRequest req, int attempt, CompletableFuture<Result<SoapFault, SoapDocument>> result) {
+        if (result.isDone()) {
+            return;
+        }
+        CompletionStage<Result<SoapFault, SoapDocument>> call;
+        try {
+            call = client.executeAsync(req);
+        } catch (RuntimeException e) {
+            call = CompletableFuture.completedFuture(Result.failure(SoapFault.fromThrowable("soap:Client", e)));
+        }
+        CompletableFuture<Result<SoapFault, SoapDocument>> current = call.toCompletableFuture();
+        result.whenComplete((r, e) -> {
+            if (result.isCancelled()) {
+                current.cancel(true);
+            }
+        });
+        current.whenComplete((r, e) -> {
+            Result<SoapFault, SoapDocument> res = r != null ? r : Result.failure(SoapFault.fromThrowable("soap:Client", e));
+            if (attempt >= policy.maxAttempts) {
+                result.complete(res);
+                return;
+            }
+            Duration backoff = policy.backoff(attempt);
+            if (!shouldRetry(req, res, backoff)) {
+                result.complete(res);
+                return;
+            }
+            // the timer thread also fires the deadlines of all calls, so it only hands the retry off
+            SoapScheduler.INSTANCE.schedule(() -> {
+                try {
+                    executor.execute(() -> attempt(req, attempt + 1, result));
+                } catch (RejectedExecutionException rejected) {
+                    result.complete(res);
+                }
+            }, backoff.toNanos(), TimeUnit.NANOSECONDS);
+        });
+    }
+
+    private boolean shouldRetry(SoapRequest req, Result<SoapFault, SoapDocument> result, Duration backoff) {
+        if (result.isSuccess() || !policy.isRetryable(req.action, result.swap().toOptional().get())) {
+            return false;
+        }
+        if (req.remaining().filter(remaining -> remaining.compareTo(backoff) <= 0).isPresent()) {
+            return false;
+        }
+        return budget.tryWithdraw();
+    }
+
+    private SoapRequest encode(SoapRequest req) {
+        return policy.maxAttempts > 1 ? req.encode() : req;
+    }
+}
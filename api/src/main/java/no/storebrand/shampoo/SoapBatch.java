@@ -0,0 +1,149 @@
+package no.storebrand.shampoo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Executes a list of requests with {@link SoapClient#executeAsync(SoapRequest)}, keeping at most {@code parallelism}
+ * calls in flight. A new call is started as soon as one completes, rather than in fixed size rounds.
+ *
+ * Calls which complete on the calling thread, as with the default {@link SoapClient#executeAsync(SoapRequest)},
+ * are run one after another in a loop, so a long batch does not grow the stack.
+ */
+final class SoapBatch {
+    private static final Logger logger = LoggerFactory.getLogger(SoapBatch.class);
+    private static final Set<Class<?>> sequentialClients = ConcurrentHashMap.newKeySet();
+
+    private final SoapClient client;
+    private final List<SoapRequest> requests;
+    private final boolean failFast;
+    private final AtomicReferenceArray<Result<SoapFault, SoapDocument>> results;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger remaining;
+    private final Set<CompletableFuture<?>> inFlight = ConcurrentHashMap.newKeySet();
+    private final CompletableFuture<List<Result<SoapFault, SoapDocument>>> done = new CompletableFuture<>();
+
+    private SoapBatch(SoapClient client, List<SoapRequest> requests, boolean failFast) {
+        this.client = client;
+        this.requests = requests;
+        this.failFast = failFast;
+        this.results = new AtomicReferenceArray<>(requests.size());
+        this.remaining = new AtomicInteger(requests.size());
+    }
+
+    /**
+     * @param failFast stops starting calls after the first fault, cancels the calls in flight and completes with
+     *                 the results so far, where calls which were not completed have no result
+     */
+    static CompletableFuture<List<Result<SoapFault, SoapDocument>>> execute(SoapClient client, List<SoapRequest> requests, int parallelism, boolean failFast) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        SoapBatch batch = new SoapBatch(client, new ArrayList<>(requests), failFast);
+        if (requests.isEmpty()) {
+            batch.complete();
+        }
+        for (int i = 0; i < Math.min(parallelism, requests.size()); i++) {
+            batch.startNext();
+            if (i == 0 && parallelism > 1 && requests.size() > 1 && batch.next.get() >= requests.size()) {
+                warnSequential(client);
+            }
+        }
+        batch.done.whenComplete((results, e) -> batch.inFlight.forEach(f -> f.cancel(true)));
+        return batch.done;
+    }
+
+    /**
+     * Every call completed before {@code executeAsync} returned, so the first slot ran the whole batch one call at a time.
+     */
+    private static void warnSequential(SoapClient client) {
+        if (sequentialClients.add(client.getClass()) && logger.isWarnEnabled()) {
+            logger.warn("{} completed every call of a batch on the calling thread, so the batch ran one call at a time. " +
+                    "Use a client with a non-blocking executeAsync, or give it an executor", client.getClass().getName());
+        }
+    }
+
+    /**
+     * The first fault in the list, or all the documents when every call succeeded.
+     * A list from a failed fast batch always contains a fault, so the calls without a result are never reached.
+     */
+    static Result<SoapFault, List<SoapDocument>> firstFault(List<Result<SoapFault, SoapDocument>> results) {
+        List<SoapDocument> documents = new ArrayList<>(results.size());
+        for (Result<SoapFault, SoapDocument> result : results) {
+            if (result != null && result.isFailure()) {
+                return Result.failure(result.swap().toOptional().get());
+            }
+        }
+        for (Result<SoapFault, SoapDocument> result : results) {
+            documents.add(result.toOptional().get());
+        }
+        return Result.success(documents);
+    }
+
+    private void startNext() {
+        while (!done.isDone()) {
+            int i = next.getAndIncrement();
+            if (i >= requests.size()) {
+                return;
+            }
+            CompletableFuture<Result<SoapFault, SoapDocument>> call = start(requests.get(i));
+            if (call.isDone()) {
+                completed(i, call);
+            } else {
+                inFlight.add(call);
+                // a fault which failed the batch while this call was started cancelled the others, but not this one
+                if (done.isDone()) {
+                    call.cancel(true);
+                }
+                call.whenComplete((result, e) -> {
+                    inFlight.remove(call);
+                    completed(i, call);
+                    startNext();
+                });
+                return;
+            }
+        }
+    }
+
+    private CompletableFuture<Result<SoapFault, SoapDocument>> start(SoapRequest req) {
+        try {
+            return client.executeAsync(req).toCompletableFuture();
+        } catch (RuntimeException e) {
+            return CompletableFuture.completedFuture(Result.failure(SoapFault.fromThrowable("soap:Client", e)));
+        }
+    }
+
+    private void completed(int i, CompletableFuture<Result<SoapFault, SoapDocument>> call) {
+        Result<SoapFault, SoapDocument> result;
+        try {
+            result = call.join();
+        } catch (CompletionException e) {
+            result = Result.failure(SoapFault.fromThrowable("soap:Client", e.getCause() != null ? e.getCause() : e));
+        } catch (RuntimeException e) {
+            result = Result.failure(SoapFault.fromThrowable("soap:Client", e));
+        }
+        results.set(i, result);
+        if (failFast && result.isFailure()) {
+            complete();
+        } else if (remaining.decrementAndGet() == 0) {
+            complete();
+        }
+    }
+
+    private void complete() {
+        List<Result<SoapFault, SoapDocument>> list = new ArrayList<>(results.length());
+        for (int i = 0; i < results.length(); i++) {
+            list.add(results.get(i));
+        }
+        done.complete(list);
+    }
+}
@@ -0,0 +1,76 @@
+package no.storebrand.shampoo;
+
+import java.net.URI;
+import java.util.Optional;
+
+/**
+ * Timings and sizes of one call. Durations are in nanoseconds, and values a transport cannot observe are -1.
+ *
+ * <ul>
+ *     <li>serialize: writing the envelope. Envelopes streamed to the connection are counted until they are sent.</li>
+ *     <li>connect: establishing the connection, when the transport exposes it.</li>
+ *     <li>timeToFirstByte: from the request is sent until the response status and headers are received.</li>
+ *     <li>response: reading and parsing the response body, including mapping a fault. Reading and parsing
+ *     are interleaved, as the body is parsed as it is read.</li>
+ *     <li>total: the whole call.</li>
+ * </ul>
+ */
+public final class SoapCallEvent {
+    public final URI endpoint;
+    public final SoapAction action;
+    /**
+     * The fault the call failed with, or empty if it succeeded.
+     */
+    public final Optional<SoapFault> fault;
+    public final int statusCode;
+    /**
+     * Whether the call failed because a connect, read or request timeout expired.
+     */
+    public final boolean timedOut;
+    public final long requestBytes;
+    public final long responseBytes;
+    public final long serializeNanos;
+    public final long connectNanos;
+    public final long timeToFirstByteNanos;
+    public final long responseNanos;
+    public final long totalNanos;
+
+    public SoapCallEvent(URI endpoint, SoapAction action, Optional<SoapFault> fault, int statusCode, boolean timedOut,
+                         long requestBytes, long responseBytes,
+                         long serializeNanos, long connectNanos, long timeToFirstByteNanos, long responseNanos, long totalNanos) {
+        this.endpoint = endpoint;
+        this.action = action;
+        this.fault = fault;
+        this.statusCode = statusCode;
+        this.timedOut = timedOut;
+        this.requestBytes = requestBytes;
+        this.responseBytes = responseBytes;
+        this.serializeNanos = serializeNanos;
+        this.connectNanos = connectNanos;
+        this.timeToFirstByteNanos = timeToFirstByteNanos;
+        this.responseNanos = responseNanos;
+        this.totalNanos = totalNanos;
+    }
+
+    public boolean isSuccess() {
+        return !fault.isPresent();
+    }
+
+    @Override
+    public String toString() {
+        return "SoapCallEvent{" +
+                "endpoint=" + endpoint +
+                ", action=" + action.action +
+                ", fault=" + fault.map(f -> f.code).orElse("none") +
+                ", statusCode=" + statusCode +
+                ", timedOut=" + timedOut +
+                ", requestBytes=" + requestBytes +
+                ", responseBytes=" + responseBytes +
+                ", serializeNanos=" + serializeNanos +
+                ", connectNanos=" + connectNanos +
+                ", timeToFirstByteNanos=" + timeToFirstByteNanos +
+                ", responseNanos=" + responseNanos +
+                ", totalNanos=" + totalNanos +
+                '}';
+    }
+}
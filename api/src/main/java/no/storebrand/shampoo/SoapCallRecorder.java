@@ -0,0 +1,189 @@
+package no.storebrand.shampoo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Used by {@link SoapClient} implementations to record the phases of one call and report them to a {@link SoapClientListener}.
+ *
+ * Phases are marked in order as the call progresses. When the listener is {@link SoapClientListener#NONE},
+ * {@link #start} returns a recorder which does nothing, so an uninstrumented call does not read the clock or wrap streams.
+ * A recorder belongs to one call and must not be shared between threads without synchronization, except for
+ * {@link #finish}, which a thread cancelling the call may race with the thread completing it.
+ */
+public class SoapCallRecorder {
+    private static final Logger logger = LoggerFactory.getLogger(SoapCallRecorder.class);
+    private static final SoapCallRecorder NOOP = new SoapCallRecorder();
+
+    private SoapCallRecorder() {
+    }
+
+    public static SoapCallRecorder start(SoapClientListener listener, URI endpoint, SoapAction action) {
+        if (listener == SoapClientListener.NONE) {
+            return NOOP;
+        }
+        SoapClientListener call;
+        try {
+            call = listener.onStart(endpoint, action);
+        } catch (RuntimeException e) {
+            logger.warn("SoapClientListener failed", e);
+            return NOOP;
+        }
+        return call == SoapClientListener.NONE ? NOOP : new Active(call, endpoint, action);
+    }
+
+    public boolean isActive() {
+        return false;
+    }
+
+    /**
+     * @param bytes the size of the envelope, or -1 to use the count from {@link #request(OutputStream)}, if any
+     */
+    public void serialized(long bytes) {
+    }
+
+    /**
+     * Counts the bytes of a streamed envelope.
+     */
+    public OutputStream request(OutputStream output) {
+        return output;
+    }
+
+    public void connected() {
+    }
+
+    public void firstByte(int statusCode) {
+    }
+
+    /**
+     * Counts the bytes read from the response body.
+     */
+    public InputStream response(InputStream input) {
+        return input;
+    }
+
+    /**
+     * Marks the call as failed by a timeout.
+     */
+    public void timedOut() {
+    }
+
+    /**
+     * Reports the call to the listener, and returns the result unchanged. Only the first result of a call is reported.
+     */
+    public <A> Result<SoapFault, A> finish(Result<SoapFault, A> result) {
+        return result;
+    }
+
+    private static final class Active extends SoapCallRecorder {
+        private final SoapClientListener listener;
+        private final URI endpoint;
+        private final SoapAction action;
+        private final long start = System.nanoTime();
+        private long serialized = -1;
+        private long connected = -1;
+        private long firstByte = -1;
+        private long requestBytes = -1;
+        private int statusCode = -1;
+        private boolean timedOut = false;
+        private CountingOutputStream request;
+        private CountingInputStream response;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        Active(SoapClientListener listener, URI endpoint, SoapAction action) {
+            this.listener = listener;
+            this.endpoint = endpoint;
+            this.action = action;
+        }
+
+        @Override
+        public boolean isActive() {
+            return true;
+        }
+
+        @Override
+        public void serialized(long bytes) {
+            serialized = System.nanoTime();
+            requestBytes = bytes == -1 && request != null ? request.count : bytes;
+        }
+
+        @Override
+        public OutputStream request(OutputStream output) {
+            request = new CountingOutputStream(output);
+            return request;
+        }
+
+        @Override
+        public void connected() {
+            connected = System.nanoTime();
+        }
+
+        @Override
+        public void firstByte(int statusCode) {
+            firstByte = System.nanoTime();
+            this.statusCode = statusCode;
+        }
+
+        /**
+         * The duration of the phase ending at {@code mark}, which starts at the latest mark before it.
+         * Transports may mark phases in different orders, e.g. connecting before a streamed envelope is serialized.
+         */
+        private long since(long mark) {
+            if (mark == -1) {
+                return -1;
+            }
+            long previous = start;
+            for (long other : new long[]{serialized, connected, firstByte}) {
+                if (other != -1 && other < mark && other > previous) {
+                    previous = other;
+                }
+            }
+            return mark - previous;
+        }
+
+        @Override
+        public InputStream response(InputStream input) {
+            response = new CountingInputStream(input);
+            return response;
+        }
+
+        @Override
+        public void timedOut() {
+            timedOut = true;
+        }
+
+        @Override
+        public <A> Result<SoapFault, A> finish(Result<SoapFault, A> result) {
+            if (!finished.compareAndSet(false, true)) {
+                return result;
+            }
+            long end = System.nanoTime();
+            SoapCallEvent event = new SoapCallEvent(
+                    endpoint,
+                    action,
+                    result.fold(Optional::of, ignore -> Optional.empty()),
+                    statusCode,
+                    timedOut,
+                    requestBytes,
+                    response == null ? -1 : response.count,
+                    since(serialized),
+                    since(connected),
+                    since(firstByte),
+                    firstByte == -1 ? -1 : end - firstByte,
+                    end - start
+            );
+            try {
+                listener.onCall(event);
+            } catch (RuntimeException e) {
+                logger.warn("SoapClientListener failed", e);
+            }
+            return result;
+        }
+    }
+}
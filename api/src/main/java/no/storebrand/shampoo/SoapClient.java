@@ -1,5 +1,50 @@
 package no.storebrand.shampoo;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 public interface SoapClient {
     Result<SoapFault, SoapDocument> execute(SoapRequest req);
+
+    /**
+     * Executes the request, and returns a stage completed with its result. Failures complete the stage with a
+     * failed {@link Result}, not exceptionally.
+     *
+     * Implementations backed by a non-blocking transport override this to return without waiting for the response.
+     * The default
+     * runs {@link #execute(SoapRequest)} on the calling thread and returns a completed stage.
+     */
+    default CompletionStage<Result<SoapFault, SoapDocument>> executeAsync(SoapRequest req) {
+        return CompletableFuture.completedFuture(execute(req));
+    }
+
+    /**
+     * Executes all the requests with {@link #executeAsync(SoapRequest)}, with at most {@code parallelism} calls in flight,
+     * and returns a result for each request in the order of the requests. A fault for one request does not stop the others.
+     *
+     * The calls share the connections of the client. {@code parallelism} bounds the calls in flight of this batch only,
+     * so batches run at the same time add up. To bound all the calls to an endpoint, execute the batches with one
+     * {@link ConcurrencyLimitedSoapClient}. With the default {@link #executeAsync(SoapRequest)} the calls run one at a
+     * time on the calling thread, which is logged as a warning once per client class.
+     */
+    default List<Result<SoapFault, SoapDocument>> executeAll(List<SoapRequest> requests, int parallelism) {
+        return executeAllAsync(requests, parallelism).toCompletableFuture().join();
+    }
+
+    default CompletionStage<List<Result<SoapFault, SoapDocument>>> executeAllAsync(List<SoapRequest> requests, int parallelism) {
+        return SoapBatch.execute(this, requests, parallelism, false);
+    }
+
+    /**
+     * As {@link #executeAll(List, int)}, but stops at the first fault: no more calls are started, the calls in flight
+     * are cancelled, and the fault is returned.
+     */
+    default Result<SoapFault, List<SoapDocument>> executeAllFailFast(List<SoapRequest> requests, int parallelism) {
+        return executeAllFailFastAsync(requests, parallelism).toCompletableFuture().join();
+    }
+
+    default CompletionStage<Result<SoapFault, List<SoapDocument>>> executeAllFailFastAsync(List<SoapRequest> requests, int parallelism) {
+        return SoapBatch.execute(this, requests, parallelism, true).thenApply(SoapBatch::firstFault);
+    }
 }
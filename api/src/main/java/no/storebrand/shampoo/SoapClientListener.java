@@ -0,0 +1,50 @@
+package no.storebrand.shampoo;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Receives a {@link SoapCallEvent} when a call completes, successfully or not.
+ *
+ * Listeners are invoked on the thread completing the call, which for asynchronous calls is a transport thread,
+ * so they must be fast and thread-safe. Exceptions thrown by a listener are logged and otherwise ignored.
+ */
+@FunctionalInterface
+public interface SoapClientListener {
+    SoapClientListener NONE = event -> {
+    };
+
+    void onCall(SoapCallEvent event);
+
+    /**
+     * Called on the calling thread when a call starts, and returns the listener which receives the event of that call.
+     * A listener which needs to act when the call starts, such as beginning a timed event, returns a listener for the one call.
+     * Returning {@link #NONE} skips recording the call.
+     */
+    default SoapClientListener onStart(URI endpoint, SoapAction action) {
+        return this;
+    }
+
+    static SoapClientListener composite(SoapClientListener... listeners) {
+        List<SoapClientListener> list = Arrays.asList(listeners.clone());
+        return new SoapClientListener() {
+            @Override
+            public void onCall(SoapCallEvent event) {
+                list.forEach(listener -> listener.onCall(event));
+            }
+
+            @Override
+            public SoapClientListener onStart(URI endpoint, SoapAction action) {
+                SoapClientListener[] started = list.stream()
+                        .map(listener -> listener.onStart(endpoint, action))
+                        .toArray(SoapClientListener[]::new);
+                return event -> {
+                    for (SoapClientListener listener : started) {
+                        listener.onCall(event);
+                    }
+                };
+            }
+        };
+    }
+}
@@ -2,15 +2,21 @@ package no.storebrand.shampoo;
 
 import org.jdom2.Document;
 import org.jdom2.Element;
+import org.jdom2.JDOMFactory;
 import org.jdom2.Namespace;
 import org.jdom2.input.SAXBuilder;
+import org.jdom2.input.sax.SAXHandler;
 import org.jdom2.output.Format;
 import org.jdom2.output.XMLOutputter;
+import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
@@ -20,63 +26,142 @@ public final class SoapDocument {
     public static final Namespace SOAP_11 = Namespace.getNamespace("soap11", "http://schemas.xmlsoap.org/soap/envelope/");
     public static final Namespace SOAP_12 = Namespace.getNamespace("soap12", "http://www.w3.org/2003/05/soap-envelope");
 
+    private static final SoapParser FAULTS = SoapParser.of(() -> {
+        SAXBuilder builder = SoapParser.secureBuilder();
+        builder.setSAXHandlerFactory(FaultHandler::new);
+        return builder;
+    }, SoapParser.DEFAULT_MAX_IDLE);
+
+    // output processors are stateless, so an outputter with a format that is never changed can be shared
+    private static final XMLOutputter PRETTY = new XMLOutputter(Format.getPrettyFormat());
+    static final XMLOutputter COMPACT = new XMLOutputter(Format.getCompactFormat());
+
+    private static volatile SoapDocumentListener listener = SoapDocumentListener.NONE;
+
     public final List<SoapHeader> header;
     public final SoapBody body;
     public final Namespace ns;
+    private final Optional<EnvelopeTemplate> template;
 
-    private SoapDocument(List<SoapHeader> header, SoapBody body, Namespace ns) {
+    private SoapDocument(List<SoapHeader> header, SoapBody body, Namespace ns, Optional<EnvelopeTemplate> template) {
         this.header = header;
         this.body = body;
         this.ns = ns;
+        this.template = template;
     }
 
     public static SoapDocument soap11(List<SoapHeader> header, SoapBody body) {
-        return new SoapDocument(header, body, SOAP_11);
+        return new SoapDocument(header, body, SOAP_11, Optional.empty());
     }
 
     public static SoapDocument soap12(List<SoapHeader> header, SoapBody body) {
-        return new SoapDocument(header, body, SOAP_12);
+        return new SoapDocument(header, body, SOAP_12, Optional.empty());
+    }
+
+    public static void setListener(SoapDocumentListener listener) {
+        SoapDocument.listener = Objects.requireNonNull(listener, "listener");
+    }
+
+    static SoapDocument fromTemplate(EnvelopeTemplate template, List<SoapHeader> header, SoapBody body) {
+        return new SoapDocument(header, body, template.ns, Optional.of(template));
     }
 
     public static Result<SoapFault, SoapDocument> fromString(String input) {
+        return fromString(input, SoapParser.DEFAULT);
+    }
+
+    public static Result<SoapFault, SoapDocument> fromString(String input, SoapParser parser) {
         if (input == null || input.trim().isEmpty()) {
             return Result.failure(SoapFault.client("null or empty string"));
         }
 
-        return fromReader(new StringReader(input));
+        return fromReader(new StringReader(input), parser);
     }
 
     public static Result<SoapFault, SoapDocument> fromStream(InputStream input) {
+        return fromStream(input, SoapParser.DEFAULT);
+    }
+
+    public static Result<SoapFault, SoapDocument> fromStream(InputStream input, SoapParser parser) {
         if (input == null) {
             return Result.failure(SoapFault.client("null stream"));
         }
-        return fromInputSource(new InputSource(input));
+        return fromInputSource(new InputSource(input), parser);
     }
 
     public static Result<SoapFault, SoapDocument> fromReader(Reader input) {
+        return fromReader(input, SoapParser.DEFAULT);
+    }
+
+    public static Result<SoapFault, SoapDocument> fromReader(Reader input, SoapParser parser) {
         if (input == null) {
             return Result.failure(SoapFault.client("null stream"));
         }
-        return fromInputSource(new InputSource(input));
+        return fromInputSource(new InputSource(input), parser);
     }
 
     public static Result<SoapFault, SoapDocument> fromInputSource(InputSource input) {
+        return fromInputSource(input, SoapParser.DEFAULT);
+    }
+
+    public static Result<SoapFault, SoapDocument> fromInputSource(InputSource input, SoapParser parser) {
         if (input == null) {
             return Result.failure(SoapFault.client("null stream"));
         }
+        SoapDocumentListener.Operation operation = listener.parsing();
+        if (operation == SoapDocumentListener.Operation.NONE) {
+            return parse(input, parser);
+        }
+        CountingInputStream counting = null;
+        if (input.getByteStream() != null) {
+            counting = new CountingInputStream(input.getByteStream());
+            InputSource counted = new InputSource(counting);
+            counted.setEncoding(input.getEncoding());
+            counted.setPublicId(input.getPublicId());
+            counted.setSystemId(input.getSystemId());
+            input = counted;
+        }
+        Result<SoapFault, SoapDocument> result = parse(input, parser);
+        operation.end(counting == null ? -1 : counting.count, result.fold(Optional::of, ignore -> Optional.empty()));
+        return result;
+    }
+
+    private static Result<SoapFault, SoapDocument> parse(InputSource input, SoapParser parser) {
         try {
-            Document doc = new SAXBuilder().build(input);
+            Document doc = parser.parse(input);
             return fromDocument(doc);
         } catch (Exception e) {
-            return Result.failure(SoapFault.parse(e.getMessage()));
+            return Result.failure(SoapFault.parse(e));
         }
     }
 
+    /**
+     * Reads an error response, building only the Fault. Anything after the Fault is parsed, but not built.
+     * Servers answer with a fault with HTTP status 500, or 400 for SOAP 1.2 sender faults.
+     */
+    public static SoapFault readFault(InputStream input) {
+        return fromStream(input, FAULTS).fold(fault -> fault, doc -> SoapFault.server("No Fault in error response"));
+    }
+
+    /**
+     * As {@link #readFault(InputStream)}, but a response which is not a SOAP Fault, such as an error page from a proxy,
+     * gives a {@link SoapFault#httpStatus(int)} fault.
+     */
+    public static SoapFault readFault(InputStream input, int statusCode) {
+        return fromStream(input, FAULTS).fold(
+                fault -> fault.kind() == SoapFault.Kind.PARSE ? SoapFault.httpStatus(statusCode) : fault,
+                doc -> SoapFault.httpStatus(statusCode));
+    }
+
     public static Result<SoapFault, SoapDocument> fromDocument(Document doc) {
         if (doc == null) {
             return Result.failure(SoapFault.client("null document"));
         }
-        Namespace ns = doc.getRootElement().getNamespace();
+        Element root = doc.getRootElement();
+        Namespace ns = root.getNamespace();
+        if (!root.getName().equals("Envelope") || !(ns.equals(SOAP_11) || ns.equals(SOAP_12))) {
+            return Result.failure(SoapFault.parse("Not a SOAP envelope: " + root.getQualifiedName()));
+        }
         if (ns.equals(SOAP_11)) {
             return soap11(doc);
         }
@@ -87,11 +172,7 @@ public final class SoapDocument {
         Optional<Element> maybeBodyish = getChild(doc.getRootElement(), "Body", SOAP_11);
         Optional<Element> maybeHeaderIsh = getChild(doc.getRootElement(), "Header", SOAP_11);
 
-        Optional<SoapFault> maybeFault = maybeBodyish.flatMap(e -> getChild(e, "Fault", SOAP_11)).flatMap(e ->
-                getChildText(e, "faultcode").map(code -> {
-                    return new SoapFault(code, getChildText(e, "faultstring").orElse(""), getChild(e, "detail").flatMap(SoapDocument::faultDetail));
-                })
-        );
+        Optional<SoapFault> maybeFault = maybeBodyish.flatMap(e -> getChild(e, "Fault", SOAP_11)).flatMap(SoapDocument::soap11Fault);
 
         if (maybeFault.isPresent()) {
             return Result.failure(maybeFault.get());
@@ -103,20 +184,30 @@ public final class SoapDocument {
         if (!maybeBody.isPresent() && maybeHeader.isEmpty()) {
             return Result.failure(SoapFault.client("Both soap:Header and soap:Body is empty."));
         }
-        return Result.fromOptional(maybeBody.map(b -> new SoapDocument(maybeHeader, b, SOAP_11)), () -> SoapFault.parse("Missing Body"));
+        return Result.fromOptional(maybeBody.map(b -> soap11(maybeHeader, b)), () -> SoapFault.parse("Missing Body"));
+    }
+
+    static Optional<SoapFault> soap11Fault(Element fault) {
+        return getChildText(fault, "faultcode").map(code ->
+                new SoapFault(code, getChildText(fault, "faultstring").orElse(""), getChild(fault, "detail").flatMap(SoapDocument::faultDetail))
+        );
+    }
+
+    static Optional<SoapFault> soap12Fault(Element fault) {
+        return getGrandChildText(fault, "Code", "Value", SOAP_12).map(code ->
+                new SoapFault(code, getChildText(fault, "Reason", SOAP_12).orElse(""), getChild(fault, "Detail", SOAP_12).flatMap(SoapDocument::faultDetail))
+        );
     }
 
     private static Optional<String> faultDetail(Element detail) {
-        Optional<String> maybeDetail = firstChild(detail).map(child -> new XMLOutputter(Format.getPrettyFormat()).outputString(child));
+        Optional<String> maybeDetail = firstChild(detail).map(child -> PRETTY.outputString(child));
         return maybeDetail.isPresent() ? maybeDetail : getText(detail);
     }
 
     private static Result<SoapFault, SoapDocument> soap12(Document doc) {
         Optional<Element> maybeBodyish = getChild(doc.getRootElement(), "Body", SOAP_12);
 
-        Optional<SoapFault> maybeFault = maybeBodyish.flatMap(e -> getChild(e, "Fault", SOAP_12)).flatMap(e ->
-                        getGrandChildText(e, "Code", "Value", SOAP_12).map(code -> new SoapFault(code, getChildText(e, "Reason", SOAP_12).orElse(""), getChild(e, "Detail", SOAP_12).flatMap(SoapDocument::faultDetail)))
-        );
+        Optional<SoapFault> maybeFault = maybeBodyish.flatMap(e -> getChild(e, "Fault", SOAP_12)).flatMap(SoapDocument::soap12Fault);
 
         if (maybeFault.isPresent()) {
             return Result.failure(maybeFault.get());
@@ -128,21 +219,85 @@ public final class SoapDocument {
         if (!maybeBody.isPresent() && maybeHeader.isEmpty()) {
             return Result.failure(SoapFault.client("Both soap12:Header and soap12:Body is empty."));
         }
-        return Result.fromOptional(maybeBody.map(b -> new SoapDocument(maybeHeader, b, SOAP_12)), () -> SoapFault.parse("Missing Body"));
+        return Result.fromOptional(maybeBody.map(b -> soap12(maybeHeader, b)), () -> SoapFault.parse("Missing Body"));
     }
 
+    /**
+     * Writes the document in compact format. The header and body elements are written in place, without being attached
+     * to an envelope, so a document may be written by several threads at once.
+     */
     public void write(OutputStream stream) throws IOException {
-        write(stream, Format.getCompactFormat());
+        SoapDocumentListener.Operation operation = listener.writing();
+        if (operation == SoapDocumentListener.Operation.NONE) {
+            writeTo(stream);
+            return;
+        }
+        CountingOutputStream counting = new CountingOutputStream(stream);
+        try {
+            writeTo(counting);
+        } catch (LimitExceededException e) {
+            // writeUpTo stopping early is not a failure
+            operation.end(counting.count, Optional.empty());
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            operation.end(counting.count, Optional.of(SoapFault.fromThrowable("soap:Client", e)));
+            throw e;
+        }
+        operation.end(counting.count, Optional.empty());
+    }
+
+    private void writeTo(OutputStream stream) throws IOException {
+        if (template.isPresent()) {
+            template.get().write(this, stream);
+            return;
+        }
+        Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+        writeCompact(writer);
+        writer.flush();
     }
 
     public void write(OutputStream stream, Format format) throws IOException {
         new XMLOutputter(format).output(toXML(), stream);
     }
 
+    /**
+     * Writes the document if it is at most {@code limit} bytes, which lets a transport send small envelopes with a
+     * Content-Length and stream larger ones. Returns false, with partial output written, if it is larger.
+     */
+    public boolean writeUpTo(OutputStream stream, int limit) throws IOException {
+        try {
+            write(new LimitedOutputStream(stream, limit));
+            return true;
+        } catch (LimitExceededException e) {
+            return false;
+        }
+    }
+
+    private void writeCompact(Writer writer) throws IOException {
+        String prefix = ns.getPrefix();
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n");
+        writer.write("<" + prefix + ":Envelope xmlns:" + prefix + "=\"" + ns.getURI() + "\">");
+        if (header.isEmpty()) {
+            writer.write("<" + prefix + ":Header />");
+        } else {
+            writer.write("<" + prefix + ":Header>");
+            for (SoapHeader h : header) {
+                COMPACT.output(h.element, writer);
+            }
+            writer.write("</" + prefix + ":Header>");
+        }
+        writer.write("<" + prefix + ":Body>");
+        COMPACT.output(body.body, writer);
+        writer.write("</" + prefix + ":Body></" + prefix + ":Envelope>\r\n");
+    }
+
+    /**
+     * Builds an envelope around copies of the header and body elements, leaving this document unchanged.
+     */
     public Document toXML() {
         return new Document(elem("Envelope", ns,
-                elem("Header", ns, header.stream().map(h -> h.element.detach()).collect(Collectors.toList())),
-                elem("Body", ns, body.body.detach())
+                elem("Header", ns, header.stream().map(h -> h.element.clone()).collect(Collectors.toList())),
+                elem("Body", ns, body.body.clone())
         ));
     }
 
@@ -151,7 +306,22 @@ public final class SoapDocument {
     }
 
     public String toCompactString() {
-        return toXMLString(Format.getCompactFormat());
+        if (template.isPresent()) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try {
+                template.get().write(this, output);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        }
+        StringWriter writer = new StringWriter();
+        try {
+            writeCompact(writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
     }
 
     @Override
@@ -162,4 +332,115 @@ public final class SoapDocument {
     public <A> Optional<A> transform(FromElement<A> f) {
         return body.transform(f);
     }
+
+    /**
+     * Builds the document up to the end of the Fault, and ignores the rest. Parsing goes on to the end of the input,
+     * so that the response is read completely and its connection can be reused.
+     */
+    private static final class FaultHandler extends SAXHandler {
+        private boolean faultRead = false;
+
+        FaultHandler(JDOMFactory factory) {
+            super(factory);
+        }
+
+        @Override
+        protected void resetSubCLass() {
+            faultRead = false;
+        }
+
+        @Override
+        public void startElement(String namespaceURI, String localName, String qName, Attributes atts) throws SAXException {
+            if (!faultRead) {
+                super.startElement(namespaceURI, localName, qName, atts);
+            }
+        }
+
+        @Override
+        public void endElement(String namespaceURI, String localName, String qName) throws SAXException {
+            if (!faultRead) {
+                super.endElement(namespaceURI, localName, qName);
+                faultRead = "Fault".equals(localName) && (SOAP_11.getURI().equals(namespaceURI) || SOAP_12.getURI().equals(namespaceURI));
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (!faultRead) {
+                super.characters(ch, start, length);
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            if (!faultRead) {
+                super.ignorableWhitespace(ch, start, length);
+            }
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) throws SAXException {
+            if (!faultRead) {
+                super.processingInstruction(target, data);
+            }
+        }
+
+        @Override
+        public void comment(char[] ch, int start, int length) throws SAXException {
+            if (!faultRead) {
+                super.comment(ch, start, length);
+            }
+        }
+
+        @Override
+        public void startCDATA() {
+            if (!faultRead) {
+                super.startCDATA();
+            }
+        }
+
+        @Override
+        public void endCDATA() throws SAXException {
+            if (!faultRead) {
+                super.endCDATA();
+            }
+        }
+    }
+
+    private static final class LimitedOutputStream extends FilterOutputStream {
+        private long remaining;
+
+        LimitedOutputStream(OutputStream out, long limit) {
+            super(out);
+            this.remaining = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (--remaining < 0) {
+                throw new LimitExceededException();
+            }
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            remaining -= len;
+            if (remaining < 0) {
+                throw new LimitExceededException();
+            }
+            out.write(b, off, len);
+        }
+    }
+
+    private static final class LimitExceededException extends IOException {
+        LimitExceededException() {
+            super(null, null);
+        }
+
+        @Override
+        public Throwable fillInStackTrace() {
+            return this;
+        }
+    }
 }
@@ -0,0 +1,40 @@
+package no.storebrand.shampoo;
+
+import java.util.Optional;
+
+/**
+ * Observes every {@link SoapDocument} parsed or written in compact format, for instance to record them as
+ * Java Flight Recorder events. Installed for the whole JVM with {@link SoapDocument#setListener}.
+ *
+ * Each operation is started on the thread doing it, and the returned {@link Operation} is ended on the same thread
+ * when it completes. Implementations must be fast and thread-safe.
+ */
+public interface SoapDocumentListener {
+    SoapDocumentListener NONE = new SoapDocumentListener() {
+        @Override
+        public Operation parsing() {
+            return Operation.NONE;
+        }
+
+        @Override
+        public Operation writing() {
+            return Operation.NONE;
+        }
+    };
+
+    Operation parsing();
+
+    Operation writing();
+
+    @FunctionalInterface
+    interface Operation {
+        Operation NONE = (bytes, fault) -> {
+        };
+
+        /**
+         * @param bytes the size of the envelope, or -1 if it was parsed from characters
+         * @param fault the fault the document was parsed as, or the failure, if any
+         */
+        void end(long bytes, Optional<SoapFault> fault);
+    }
+}
@@ -1,19 +1,34 @@
 package no.storebrand.shampoo;
 
-
+import javax.xml.stream.XMLStreamException;
+import java.io.CharConversionException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
 import java.util.Optional;
 
 public final class SoapFault {
     public final String code;
     public final String message;
     public final Optional<String> detail;
+    /**
+     * The exception which caused a client side fault. Not part of {@link #equals(Object)}.
+     */
+    public final Optional<Throwable> cause;
 
     public SoapFault(String code, String message, Optional<String> detail) {
+        this(code, message, detail, Optional.empty());
+    }
+
+    private SoapFault(String code, String message, Optional<String> detail, Optional<Throwable> cause) {
         this.code = code;
         this.message = message;
         this.detail = detail;
+        this.cause = cause;
     }
 
     public static SoapFault client(String message) {
@@ -28,11 +43,111 @@ public final class SoapFault {
         return new SoapFault("parse", message, Optional.empty());
     }
 
+    /**
+     * A fault for an exception thrown while a response was parsed. An {@link IOException} from the stream, such as a
+     * connection reset while the body was read, is kept as the cause, so that the fault is a transport failure and not
+     * a {@link Kind#PARSE} fault. Bytes which are not valid in the encoding of the document are a parse fault.
+     */
+    static SoapFault parse(Exception e) {
+        Throwable t = e;
+        for (int depth = 0; t != null && depth < 10; depth++) {
+            if (t instanceof IOException && !(t instanceof CharConversionException)) {
+                return fromThrowable("soap:Client", t);
+            }
+            // StAX readers keep the exception they wrap as the nested exception, and not always as the cause
+            t = t instanceof XMLStreamException && ((XMLStreamException) t).getNestedException() != null
+                    ? ((XMLStreamException) t).getNestedException()
+                    : t.getCause();
+        }
+        return parse(e.getMessage());
+    }
+
+    /**
+     * A call which was rejected by the client without being sent, as the backend is overloaded.
+     */
+    public static SoapFault overloaded(String message) {
+        return new SoapFault("overloaded", message, Optional.empty());
+    }
+
+    /**
+     * A fault for an error response with {@code statusCode} which does not contain a SOAP Fault.
+     */
+    public static SoapFault httpStatus(int statusCode) {
+        return fromThrowable("soap:Server", new HttpStatusException(statusCode));
+    }
+
+    /**
+     * A fault with the stack trace of {@code e} as detail. Rendering the stack trace is expensive, prefer
+     * {@link #fromThrowable(String, Throwable)} for faults which are created often, such as transport failures.
+     */
     public static SoapFault exception(String code, Throwable e) {
+        return new SoapFault(code, messageOf(e), stackTrace(e), Optional.of(e));
+    }
+
+    /**
+     * A fault which keeps {@code e} as its cause, without detail. The stack trace is only rendered by {@link #stackTrace()}.
+     */
+    public static SoapFault fromThrowable(String code, Throwable e) {
+        return new SoapFault(code, messageOf(e), Optional.empty(), Optional.of(e));
+    }
+
+    /**
+     * The stack trace of the cause, rendered on every call.
+     */
+    public Optional<String> stackTrace() {
+        return cause.flatMap(SoapFault::stackTrace);
+    }
+
+    /**
+     * What kind of failure the fault is, derived from its code and cause.
+     */
+    public Kind kind() {
+        if (cause.isPresent()) {
+            Throwable e = cause.get();
+            if (e instanceof HttpStatusException) {
+                return Kind.HTTP_STATUS;
+            }
+            if (e instanceof InterruptedIOException || isHttpTimeout(e.getClass())) {
+                return Kind.TIMEOUT;
+            }
+            if (e instanceof ConnectException || e instanceof NoRouteToHostException || e instanceof UnknownHostException) {
+                return Kind.CONNECT;
+            }
+            if (e instanceof IOException) {
+                return Kind.TRANSPORT;
+            }
+        }
+        if (code.equals("overloaded")) {
+            return Kind.OVERLOADED;
+        }
+        if (code.equals("parse")) {
+            return Kind.PARSE;
+        }
+        String local = code.substring(code.indexOf(':') + 1);
+        return local.equals("Server") || local.equals("Receiver") ? Kind.SERVER : Kind.CLIENT;
+    }
+
+    /**
+     * java.net.http is not available on Java 8, so its timeouts are recognized by name.
+     */
+    private static boolean isHttpTimeout(Class<?> type) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            if (c.getName().equals("java.net.http.HttpTimeoutException")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String messageOf(Throwable e) {
+        return Optional.ofNullable(e.getMessage()).orElse(e.getClass().getName());
+    }
+
+    private static Optional<String> stackTrace(Throwable e) {
         StringWriter writer = new StringWriter();
         e.printStackTrace(new PrintWriter(writer));
         writer.flush();
-        return new SoapFault(code, Optional.of(e.getMessage()).orElse(e.getClass().getName()), Optional.of(writer.toString()));
+        return Optional.of(writer.toString());
     }
 
     @Override
@@ -63,4 +178,39 @@ public final class SoapFault {
                 ", detail=" + detail.orElse("") +
                 '}';
     }
+
+    public enum Kind {
+        /**
+         * The connection could not be established, so the request was not sent.
+         */
+        CONNECT,
+        /**
+         * The connection failed, for instance by being reset, after the request may have been sent.
+         */
+        TRANSPORT,
+        /**
+         * A timeout, or the deadline of the request, passed.
+         */
+        TIMEOUT,
+        /**
+         * An error response without a SOAP Fault. The status code is in the {@link HttpStatusException} cause.
+         */
+        HTTP_STATUS,
+        /**
+         * The client rejected the call without sending it, see {@link #overloaded(String)}.
+         */
+        OVERLOADED,
+        /**
+         * The response could not be parsed.
+         */
+        PARSE,
+        /**
+         * A SOAP Fault with the Server or Receiver code, returned by the backend.
+         */
+        SERVER,
+        /**
+         * A SOAP Fault with any other code, or a fault for a request the client could not send.
+         */
+        CLIENT
+    }
 }
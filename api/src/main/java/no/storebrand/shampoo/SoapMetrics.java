@@ -0,0 +1,101 @@
+package no.storebrand.shampoo;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link SoapClientListener} which counts calls, faults and timeouts, and records the total latency of calls,
+ * per endpoint and {@link SoapAction}.
+ *
+ * Recording is lock-free: counters are {@link LongAdder}s, latencies go to a {@link LatencyHistogram}, and the
+ * statistics for an endpoint and action are looked up without allocating once they exist. Share one instance
+ * between all clients, e.g. {@code client.withListener(metrics)}, and read it with {@link #snapshots()}.
+ */
+public final class SoapMetrics implements SoapClientListener {
+    private final ConcurrentMap<URI, ConcurrentMap<SoapAction, Stats>> stats = new ConcurrentHashMap<>();
+
+    @Override
+    public void onCall(SoapCallEvent event) {
+        Stats s = stats(event.endpoint, event.action);
+        s.calls.increment();
+        if (event.fault.isPresent()) {
+            s.faults.increment();
+        }
+        if (event.timedOut) {
+            s.timeouts.increment();
+        }
+        s.latency.record(event.totalNanos);
+    }
+
+    public Optional<Snapshot> snapshot(URI endpoint, SoapAction action) {
+        Map<SoapAction, Stats> byAction = stats.get(endpoint);
+        Stats s = byAction == null ? null : byAction.get(action);
+        return s == null ? Optional.empty() : Optional.of(s.snapshot(endpoint, action));
+    }
+
+    public List<Snapshot> snapshots() {
+        List<Snapshot> result = new ArrayList<>();
+        stats.forEach((endpoint, byAction) -> byAction.forEach((action, s) -> result.add(s.snapshot(endpoint, action))));
+        return result;
+    }
+
+    private Stats stats(URI endpoint, SoapAction action) {
+        // get before computeIfAbsent, as the lambdas capture and allocate on every call
+        ConcurrentMap<SoapAction, Stats> byAction = stats.get(endpoint);
+        if (byAction == null) {
+            byAction = stats.computeIfAbsent(endpoint, ignore -> new ConcurrentHashMap<>());
+        }
+        Stats s = byAction.get(action);
+        if (s == null) {
+            s = byAction.computeIfAbsent(action, ignore -> new Stats());
+        }
+        return s;
+    }
+
+    private static final class Stats {
+        final LongAdder calls = new LongAdder();
+        final LongAdder faults = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Snapshot snapshot(URI endpoint, SoapAction action) {
+            return new Snapshot(endpoint, action, calls.sum(), faults.sum(), timeouts.sum(), latency.snapshot());
+        }
+    }
+
+    public static final class Snapshot {
+        public final URI endpoint;
+        public final SoapAction action;
+        public final long calls;
+        public final long faults;
+        public final long timeouts;
+        public final LatencyHistogram.Snapshot latency;
+
+        private Snapshot(URI endpoint, SoapAction action, long calls, long faults, long timeouts, LatencyHistogram.Snapshot latency) {
+            this.endpoint = endpoint;
+            this.action = action;
+            this.calls = calls;
+            this.faults = faults;
+            this.timeouts = timeouts;
+            this.latency = latency;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "endpoint=" + endpoint +
+                    ", action=" + action +
+                    ", calls=" + calls +
+                    ", faults=" + faults +
+                    ", timeouts=" + timeouts +
+                    ", latency=" + latency +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package no.storebrand.shampoo;
+
+import org.jdom2.Document;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.input.sax.XMLReaders;
+import org.xml.sax.InputSource;
+
+import javax.xml.XMLConstants;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A thread-safe pool of {@link SAXBuilder}s.
+ *
+ * A builder keeps its underlying SAX parser between documents, so borrowing one from the pool avoids
+ * resolving the parser factory and allocating a new parser for every response.
+ * The pool is lock-free and does not pin builders to threads, so it works equally well for platform and virtual threads.
+ */
+public final class SoapParser {
+    public static final int DEFAULT_MAX_IDLE = Runtime.getRuntime().availableProcessors() * 2;
+
+    public static final SoapParser DEFAULT = secure();
+
+    private final Supplier<SAXBuilder> factory;
+    private final int maxIdle;
+    private final Queue<SAXBuilder> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private SoapParser(Supplier<SAXBuilder> factory, int maxIdle) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle must not be negative");
+        }
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * A non-validating parser which rejects DOCTYPE declarations and never resolves external entities.
+     * SOAP messages are not allowed to contain a DTD, so this does not reject any valid message.
+     */
+    public static SoapParser secure() {
+        return of(SoapParser::secureBuilder, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * @param factory creates a new configured builder when the pool is empty. Builders must not be shared outside the pool.
+     * @param maxIdle the maximum number of builders kept in the pool between parses.
+     */
+    public static SoapParser of(Supplier<SAXBuilder> factory, int maxIdle) {
+        return new SoapParser(factory, maxIdle);
+    }
+
+    public static SAXBuilder secureBuilder() {
+        SAXBuilder builder = new SAXBuilder(XMLReaders.NONVALIDATING);
+        builder.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        builder.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        builder.setFeature("http://xml.org/sax/features/external-general-entities", false);
+        builder.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        builder.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        builder.setExpandEntities(false);
+        builder.setReuseParser(true);
+        return builder;
+    }
+
+    public Document parse(InputSource input) throws JDOMException, IOException {
+        SAXBuilder builder = borrow();
+        Document document = builder.build(input);
+        // a builder which failed is dropped, as the state of its parser is unknown
+        release(builder);
+        return document;
+    }
+
+    private SAXBuilder borrow() {
+        SAXBuilder builder = idle.poll();
+        if (builder == null) {
+            return factory.get();
+        }
+        idleCount.decrementAndGet();
+        return builder;
+    }
+
+    private void release(SAXBuilder builder) {
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(builder);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+}
@@ -1,26 +1,43 @@
 package no.storebrand.shampoo;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 
 public final class SoapRequest {
     public final Map<String, String> headers;
     public final SoapDocument soapDocument;
     public final SoapAction action;
+    /**
+     * The serialized envelope of a request returned from {@link #encode()}, which clients send instead of the document.
+     */
+    public final Optional<EncodedRequest> encoded;
+    /**
+     * When the call must be completed, including connecting, sending the request and reading and parsing the response.
+     * A call still running at the deadline is aborted with a fault, and a call is not started after it.
+     */
+    public final Optional<Instant> deadline;
 
-    private SoapRequest(Map<String, String> headers, SoapDocument document, SoapAction action) {
+    private SoapRequest(Map<String, String> headers, SoapDocument document, SoapAction action, Optional<EncodedRequest> encoded, Optional<Instant> deadline) {
         this.headers = headers;
         this.action = action;
         this.soapDocument = document;
+        this.encoded = encoded;
+        this.deadline = deadline;
     }
 
     public static SoapRequest soap11(SoapBody body, List<SoapHeader> header, SoapAction action) {
         SoapDocument doc = SoapDocument.soap11(header, body);
-        return new SoapRequest(Collections.emptyMap(), doc, action);
+        return new SoapRequest(Collections.emptyMap(), doc, action, Optional.empty(), Optional.empty());
     }
 
     public static SoapRequest soap12(SoapBody body, List<SoapHeader> header, SoapAction action) {
         SoapDocument doc = SoapDocument.soap12(header, body);
-        return new SoapRequest(Collections.emptyMap(), doc, action);
+        return new SoapRequest(Collections.emptyMap(), doc, action, Optional.empty(), Optional.empty());
+    }
+
+    public static SoapRequest of(SoapDocument doc, SoapAction action) {
+        return new SoapRequest(Collections.emptyMap(), doc, action, Optional.empty(), Optional.empty());
     }
 
     public SoapRequest setHttpHeader(String name, String value) {
@@ -32,7 +49,7 @@ public final class SoapRequest {
             copyHeaders.put(name, value);
         }
 
-        return new SoapRequest(copyHeaders, soapDocument, action);
+        return new SoapRequest(copyHeaders, soapDocument, action, encoded, deadline);
     }
 
     public SoapRequest removeHttpHeader(String name) {
@@ -41,6 +58,42 @@ public final class SoapRequest {
         }
         Map<String, String> copyHeaders = new HashMap<>(headers);
         copyHeaders.remove(name);
-        return new SoapRequest(copyHeaders, soapDocument, action);
+        return new SoapRequest(copyHeaders, soapDocument, action, encoded, deadline);
+    }
+
+    /**
+     * Serializes the envelope once. The returned request is sent as these bytes every time, so it can be shared between
+     * threads and reused for retries. Elements of the document must not be changed after encoding.
+     */
+    public SoapRequest encode() {
+        if (encoded.isPresent()) {
+            return this;
+        }
+        return new SoapRequest(headers, soapDocument, action, Optional.of(EncodedRequest.encode(soapDocument, action)), deadline);
+    }
+
+    /**
+     * Use the deadline of the caller to propagate its remaining time to the calls it makes.
+     */
+    public SoapRequest withDeadline(Instant deadline) {
+        return new SoapRequest(headers, soapDocument, action, encoded, Optional.of(deadline));
+    }
+
+    /**
+     * Sets the deadline to {@code timeout} from now. The timeout runs from this call, so a request which is reused for
+     * several calls should be given a new timeout for each.
+     */
+    public SoapRequest withTimeout(Duration timeout) {
+        return withDeadline(Instant.now().plus(timeout));
+    }
+
+    /**
+     * The time left until the deadline, which is zero once the deadline has passed.
+     */
+    public Optional<Duration> remaining() {
+        return deadline.map(d -> {
+            Duration remaining = Duration.between(Instant.now(), d);
+            return remaining.isNegative() ? Duration.ZERO : remaining;
+        });
     }
 }
@@ -0,0 +1,22 @@
+package no.storebrand.shampoo;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * The daemon thread which runs the timers of the client, so tasks on it must be quick and must not block.
+ */
+final class SoapScheduler {
+    static final ScheduledThreadPoolExecutor INSTANCE = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "shampoo-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // most timers are cancelled, as calls complete before their deadline, and should not stay queued
+        INSTANCE.setRemoveOnCancelPolicy(true);
+    }
+
+    private SoapScheduler() {
+    }
+}
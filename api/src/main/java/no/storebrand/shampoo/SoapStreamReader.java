@@ -0,0 +1,293 @@
+package no.storebrand.shampoo;
+
+import org.jdom2.Attribute;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.Namespace;
+import org.jdom2.input.StAXStreamBuilder;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Decodes a SOAP envelope with StAX, without building the whole document in memory.
+ *
+ * The envelope is read up to the payload, which is the first child of the Body. A Fault is detected at that point
+ * and returned as a failure from {@link #open(InputStream)}. The children of the payload are then built one at a time
+ * by {@link #iterator()}, so memory use is bounded by the largest child rather than by the size of the response.
+ *
+ * Each child is a detached element carrying the namespace declarations in scope from the envelope down to the payload.
+ */
+public final class SoapStreamReader implements Iterable<Element>, AutoCloseable {
+    /**
+     * The most bytes read and discarded from a response which is not opened, such as a fault, so that its connection
+     * can be reused. The rest of a longer response is left to the transport, which usually closes the connection.
+     */
+    public static final long DRAIN_LIMIT = 64 * 1024;
+
+    private static final XMLInputFactory inputFactory = newInputFactory();
+
+    public final Namespace ns;
+    public final List<SoapHeader> header;
+    /**
+     * The payload element with its attributes, but without children.
+     */
+    public final Element payload;
+
+    private final XMLStreamReader reader;
+    private final InputStream input;
+    private final StAXStreamBuilder builder;
+    private final List<Namespace> inScope;
+    private boolean iterated = false;
+    private boolean atUnreadEvent = false;
+
+    private SoapStreamReader(Namespace ns, List<SoapHeader> header, Element payload, XMLStreamReader reader, InputStream input, StAXStreamBuilder builder, List<Namespace> inScope) {
+        this.ns = ns;
+        this.header = header;
+        this.payload = payload;
+        this.reader = reader;
+        this.input = input;
+        this.builder = builder;
+        this.inScope = inScope;
+    }
+
+    /**
+     * Reads the envelope up to the payload. The returned reader must be closed, which also closes the input.
+     */
+    public static Result<SoapFault, SoapStreamReader> open(InputStream input) {
+        if (input == null) {
+            return Result.failure(SoapFault.client("null stream"));
+        }
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(input);
+            Result<SoapFault, SoapStreamReader> result = open(reader, input);
+            if (result.isFailure()) {
+                drainQuietly(input);
+                closeQuietly(reader, input);
+            }
+            return result;
+        } catch (XMLStreamException | JDOMException | RuntimeException e) {
+            closeQuietly(reader, input);
+            return Result.failure(SoapFault.parse(e));
+        }
+    }
+
+    /**
+     * Opens the reader, applies {@code f} and closes it, mapping parse errors during iteration to a parse fault.
+     */
+    public static <A> Result<SoapFault, A> read(InputStream input, Function<SoapStreamReader, A> f) {
+        return open(input).flatMap(reader -> {
+            try (SoapStreamReader r = reader) {
+                return Result.success(f.apply(r));
+            } catch (StreamException e) {
+                return Result.failure(SoapFault.parse(e));
+            }
+        });
+    }
+
+    private static Result<SoapFault, SoapStreamReader> open(XMLStreamReader reader, InputStream input) throws XMLStreamException, JDOMException {
+        StAXStreamBuilder builder = new StAXStreamBuilder();
+        List<Namespace> inScope = new ArrayList<>();
+
+        reader.nextTag();
+        if (!isStart(reader, "Envelope", SoapDocument.SOAP_11) && !isStart(reader, "Envelope", SoapDocument.SOAP_12)) {
+            String prefix = reader.getPrefix();
+            String name = prefix == null || prefix.isEmpty() ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+            return Result.failure(SoapFault.parse("Not a SOAP envelope: " + name));
+        }
+        Namespace ns = SoapDocument.SOAP_11.getURI().equals(reader.getNamespaceURI()) ? SoapDocument.SOAP_11 : SoapDocument.SOAP_12;
+        String prefix = ns == SoapDocument.SOAP_11 ? "soap" : "soap12";
+        collectNamespaces(reader, inScope);
+
+        reader.nextTag();
+        List<SoapHeader> header = Collections.emptyList();
+        if (isStart(reader, "Header", ns)) {
+            Element headerElement = (Element) builder.fragment(reader);
+            header = headerElement.getChildren().stream().map(SoapHeader::new).collect(Collectors.toList());
+            // building a fragment leaves the reader at the event following it
+            toElementEvent(reader, reader.getEventType());
+        }
+        if (!isStart(reader, "Body", ns)) {
+            return Result.failure(SoapFault.parse("Missing Body"));
+        }
+        collectNamespaces(reader, inScope);
+
+        if (reader.nextTag() == XMLStreamConstants.END_ELEMENT) {
+            if (header.isEmpty()) {
+                return Result.failure(SoapFault.client(String.format("Both %s:Header and %s:Body is empty.", prefix, prefix)));
+            }
+            return Result.failure(SoapFault.parse("Missing Body"));
+        }
+
+        if (isStart(reader, "Fault", ns)) {
+            Element fault = (Element) builder.fragment(reader);
+            Optional<SoapFault> maybeFault = ns == SoapDocument.SOAP_11 ? SoapDocument.soap11Fault(fault) : SoapDocument.soap12Fault(fault);
+            if (maybeFault.isPresent()) {
+                return Result.failure(maybeFault.get());
+            }
+            return Result.failure(SoapFault.parse("Unrecognized Fault"));
+        }
+
+        Element payload = new Element(reader.getLocalName(), namespace(reader.getPrefix(), reader.getNamespaceURI()));
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            payload.setAttribute(new Attribute(
+                    reader.getAttributeLocalName(i),
+                    reader.getAttributeValue(i),
+                    namespace(reader.getAttributePrefix(i), reader.getAttributeNamespace(i))
+            ));
+        }
+        collectNamespaces(reader, inScope);
+
+        return Result.success(new SoapStreamReader(ns, header, payload, reader, input, builder, inScope));
+    }
+
+    /**
+     * Iterates over the child elements of the payload. Can only be called once.
+     * Parse errors during iteration are thrown as {@link StreamException}.
+     */
+    @Override
+    public Iterator<Element> iterator() {
+        if (iterated) {
+            throw new IllegalStateException("The payload can only be iterated once");
+        }
+        iterated = true;
+        return new Iterator<Element>() {
+            private Element next = null;
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !done) {
+                    next = readNext();
+                    done = next == null;
+                }
+                return next != null;
+            }
+
+            @Override
+            public Element next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Element element = next;
+                next = null;
+                return element;
+            }
+        };
+    }
+
+    public Stream<Element> elements() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    public <A> Stream<A> stream(FromElement<A> f) {
+        return elements().map(f::fromElement).filter(Optional::isPresent).map(Optional::get);
+    }
+
+    private Element readNext() {
+        try {
+            int event = toElementEvent(reader, atUnreadEvent ? reader.getEventType() : reader.next());
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                return null;
+            }
+            Element element = (Element) builder.fragment(reader);
+            atUnreadEvent = true;
+            for (Namespace namespace : inScope) {
+                if (element.getNamespace(namespace.getPrefix()) == null) {
+                    element.addNamespaceDeclaration(namespace);
+                }
+            }
+            return element;
+        } catch (XMLStreamException | JDOMException e) {
+            throw new StreamException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(reader, input);
+    }
+
+    /**
+     * Advances from {@code event} to the first start or end element, skipping text as the payload may be mixed content.
+     */
+    private static int toElementEvent(XMLStreamReader reader, int event) throws XMLStreamException {
+        while (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT) {
+            if (event == XMLStreamConstants.END_DOCUMENT) {
+                throw new XMLStreamException("Unexpected end of document");
+            }
+            event = reader.next();
+        }
+        return event;
+    }
+
+    private static boolean isStart(XMLStreamReader reader, String name, Namespace ns) {
+        return reader.isStartElement() && name.equals(reader.getLocalName()) && ns.getURI().equals(reader.getNamespaceURI());
+    }
+
+    private static void collectNamespaces(XMLStreamReader reader, List<Namespace> inScope) {
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            Namespace namespace = namespace(reader.getNamespacePrefix(i), reader.getNamespaceURI(i));
+            if (!namespace.getPrefix().isEmpty()) {
+                inScope.removeIf(n -> n.getPrefix().equals(namespace.getPrefix()));
+                inScope.add(namespace);
+            }
+        }
+    }
+
+    private static Namespace namespace(String prefix, String uri) {
+        return Namespace.getNamespace(prefix == null ? "" : prefix, uri == null ? "" : uri);
+    }
+
+    private static void drainQuietly(InputStream input) {
+        try {
+            if (input.read() == -1) {
+                return;
+            }
+            byte[] buffer = new byte[8192];
+            long remaining = DRAIN_LIMIT - 1;
+            int n;
+            while (remaining > 0 && (n = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                remaining -= n;
+            }
+        } catch (IOException ignore) {
+        }
+    }
+
+    private static void closeQuietly(XMLStreamReader reader, InputStream input) {
+        try {
+            if (reader != null) {
+                reader.close();
+            }
+        } catch (XMLStreamException ignore) {
+        }
+        try {
+            input.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    public static final class StreamException extends RuntimeException {
+        public StreamException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package no.storebrand.shampoo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits extra calls, such as retries or hedges, to a ratio of the calls made. Every call deposits {@code ratio}
+ * tokens, and every extra call withdraws one. At most {@code maxTokens} are saved up for bursts.
+ */
+final class TokenBucket {
+    // tokens are kept in thousandths, so that fractions can be deposited
+    private static final long SCALE = 1000;
+
+    private final long deposit;
+    private final long max;
+    private final AtomicLong tokens;
+
+    TokenBucket(double ratio, int maxTokens, int initialTokens) {
+        this.deposit = (long) (ratio * SCALE);
+        this.max = maxTokens * SCALE;
+        this.tokens = new AtomicLong(Math.min(initialTokens, maxTokens) * SCALE);
+    }
+
+    void deposit() {
+        while (true) {
+            long current = tokens.get();
+            long next = Math.min(max, current + deposit);
+            if (next == current || tokens.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    boolean tryWithdraw() {
+        while (true) {
+            long current = tokens.get();
+            if (current < SCALE) {
+                return false;
+            }
+            if (tokens.compareAndSet(current, current - SCALE)) {
+                return true;
+            }
+        }
+    }
+}
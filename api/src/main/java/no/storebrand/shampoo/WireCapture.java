@@ -0,0 +1,112 @@
+package no.storebrand.shampoo;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Keeps the first bytes of a message as it is written or read, for debug logging.
+ *
+ * Streams are teed through the capture while the envelope is serialized or parsed, so logging neither buffers the
+ * whole message nor serializes the document a second time. Only the first {@link #DEFAULT_LIMIT} bytes are kept,
+ * configured with the system property {@code shampoo.wireCapture.limit}.
+ */
+public final class WireCapture {
+    public static final int DEFAULT_LIMIT = Integer.getInteger("shampoo.wireCapture.limit", 8 * 1024);
+
+    private final byte[] buffer;
+    private int size = 0;
+    private long total = 0;
+
+    private WireCapture(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        this.buffer = new byte[limit];
+    }
+
+    public static WireCapture bounded(int limit) {
+        return new WireCapture(limit);
+    }
+
+    public static WireCapture create() {
+        return bounded(DEFAULT_LIMIT);
+    }
+
+    public InputStream tee(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    capture(b);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    capture(b, off, n);
+                }
+                return n;
+            }
+        };
+    }
+
+    public OutputStream tee(OutputStream output) {
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                capture(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                capture(b, off, len);
+            }
+        };
+    }
+
+    public void capture(byte[] b, int off, int len) {
+        int n = Math.min(len, buffer.length - size);
+        if (n > 0) {
+            System.arraycopy(b, off, buffer, size, n);
+            size += n;
+        }
+        total += len;
+    }
+
+    private void capture(int b) {
+        if (size < buffer.length) {
+            buffer[size++] = (byte) b;
+        }
+        total++;
+    }
+
+    /**
+     * The number of bytes which passed through the capture, including those not kept.
+     */
+    public long total() {
+        return total;
+    }
+
+    public boolean isTruncated() {
+        return total > size;
+    }
+
+    @Override
+    public String toString() {
+        String captured = new String(buffer, 0, size, StandardCharsets.UTF_8);
+        if (isTruncated()) {
+            return captured + "... [truncated, " + total + " bytes]";
+        }
+        return captured;
+    }
+}
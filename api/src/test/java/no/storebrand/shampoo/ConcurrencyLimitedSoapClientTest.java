@@ -0,0 +1,155 @@
+package no.storebrand.shampoo;
+
+import org.jdom2.Element;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimitedSoapClientTest {
+    private static final SoapAction ACTION = SoapAction.of("http://echo/Echo/echo");
+
+    @Test
+    public void shedsCallsOverLimit() {
+        PendingClient pending = new PendingClient();
+        ConcurrencyLimitedSoapClient client = ConcurrencyLimitedSoapClient.perEndpoint(pending, ConcurrencyLimit.DEFAULT.withLimits(2, 1, 10));
+
+        CompletionStage<Result<SoapFault, SoapDocument>> first = client.executeAsync(request(ACTION));
+        client.executeAsync(request(ACTION));
+        Result<SoapFault, SoapDocument> shed = client.execute(request(ACTION));
+
+        assertEquals("overloaded", shed.swap().toOptional().get().code);
+        assertEquals(2, pending.calls.size());
+        assertEquals(2, client.inFlight(ACTION));
+
+        pending.calls.get(0).complete(Result.success(request(ACTION).soapDocument));
+        assertTrue(first.toCompletableFuture().isDone());
+        assertEquals(1, client.inFlight(ACTION));
+        client.executeAsync(request(ACTION));
+        assertEquals(3, pending.calls.size());
+    }
+
+    @Test
+    public void backsOffOnTransportFailures() {
+        SoapClient failing = req -> Result.failure(SoapFault.fromThrowable("soap:Client", new IOException("Connection reset")));
+        ConcurrencyLimitedSoapClient client = ConcurrencyLimitedSoapClient.perEndpoint(failing, ConcurrencyLimit.DEFAULT);
+        for (int i = 0; i < 100; i++) {
+            client.execute(request(ACTION));
+        }
+        assertEquals(ConcurrencyLimit.DEFAULT.minLimit, client.limit(ACTION));
+    }
+
+    @Test
+    public void faultsFromBackendAreNotOverload() {
+        SoapClient faulting = req -> Result.failure(SoapFault.server("No such customer"));
+        ConcurrencyLimitedSoapClient client = ConcurrencyLimitedSoapClient.perEndpoint(faulting, ConcurrencyLimit.DEFAULT);
+        for (int i = 0; i < 100; i++) {
+            client.execute(request(ACTION));
+        }
+        assertEquals(ConcurrencyLimit.DEFAULT.initialLimit, client.limit(ACTION));
+    }
+
+    @Test
+    public void otherFailuresAreNotOverload() {
+        List<SoapFault> faults = Arrays.asList(
+                SoapFault.httpStatus(404),
+                SoapFault.fromThrowable("soap:Client", new IllegalArgumentException("Invalid header")),
+                SoapFault.parse("Unexpected end of file"));
+        for (SoapFault fault : faults) {
+            ConcurrencyLimitedSoapClient client = ConcurrencyLimitedSoapClient.perEndpoint(req -> Result.failure(fault), ConcurrencyLimit.DEFAULT);
+            for (int i = 0; i < 100; i++) {
+                client.execute(request(ACTION));
+            }
+            assertEquals(fault.toString(), ConcurrencyLimit.DEFAULT.initialLimit, client.limit(ACTION));
+        }
+        ConcurrencyLimitedSoapClient unavailable = ConcurrencyLimitedSoapClient.perEndpoint(req -> Result.failure(SoapFault.httpStatus(503)), ConcurrencyLimit.DEFAULT);
+        for (int i = 0; i < 100; i++) {
+            unavailable.execute(request(ACTION));
+        }
+        assertEquals(ConcurrencyLimit.DEFAULT.minLimit, unavailable.limit(ACTION));
+    }
+
+    @Test
+    public void cancellingReleasesPermit() {
+        PendingClient pending = new PendingClient();
+        ConcurrencyLimitedSoapClient client = ConcurrencyLimitedSoapClient.perEndpoint(pending, ConcurrencyLimit.DEFAULT.withLimits(1, 1, 10));
+
+        client.executeAsync(request(ACTION)).toCompletableFuture().cancel(true);
+
+        assertTrue(pending.calls.get(0).isCancelled());
+        assertEquals(0, client.inFlight(ACTION));
+    }
+
+    @Test
+    public void backsOffOnSlowCalls() {
+        SoapClient slow = req -> {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Result.success(req.soapDocument);
+        };
+        ConcurrencyLimitedSoapClient client = ConcurrencyLimitedSoapClient.perEndpoint(slow, ConcurrencyLimit.DEFAULT.withLatencyThreshold(Duration.ofMillis(1)));
+        client.execute(request(ACTION));
+        assertEquals(18, client.limit(ACTION));
+    }
+
+    @Test
+    public void growsWhenLimitIsUsed() {
+        PendingClient pending = new PendingClient();
+        ConcurrencyLimitedSoapClient client = ConcurrencyLimitedSoapClient.perEndpoint(pending, ConcurrencyLimit.DEFAULT.withLimits(4, 1, 10));
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < client.limit(ACTION); i++) {
+                client.executeAsync(request(ACTION));
+            }
+            pending.completeAll();
+        }
+        assertTrue(client.limit(ACTION) > 4);
+        assertTrue(client.limit(ACTION) <= 10);
+    }
+
+    @Test
+    public void limitPerAction() {
+        PendingClient pending = new PendingClient();
+        SoapAction other = SoapAction.of("http://echo/Echo/other");
+        ConcurrencyLimitedSoapClient client = ConcurrencyLimitedSoapClient.perAction(pending, ConcurrencyLimit.DEFAULT.withLimits(1, 1, 10));
+
+        client.executeAsync(request(ACTION));
+        assertEquals("overloaded", client.execute(request(ACTION)).swap().toOptional().get().code);
+        client.executeAsync(request(other));
+        assertEquals(2, pending.calls.size());
+    }
+
+    private static SoapRequest request(SoapAction action) {
+        return SoapRequest.soap11(new SoapBody(new Element("input")), Collections.emptyList(), action);
+    }
+
+    private static final class PendingClient implements SoapClient {
+        final List<CompletableFuture<Result<SoapFault, SoapDocument>>> calls = new ArrayList<>();
+
+        @Override
+        public Result<SoapFault, SoapDocument> execute(SoapRequest req) {
+            return executeAsync(req).toCompletableFuture().join();
+        }
+
+        @Override
+        public CompletionStage<Result<SoapFault, SoapDocument>> executeAsync(SoapRequest req) {
+            CompletableFuture<Result<SoapFault, SoapDocument>> call = new CompletableFuture<>();
+            calls.add(call);
+            return call;
+        }
+
+        void completeAll() {
+            calls.forEach(call -> call.complete(Result.success(request(ACTION).soapDocument)));
+        }
+    }
+}
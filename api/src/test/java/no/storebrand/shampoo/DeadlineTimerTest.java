@@ -0,0 +1,57 @@
+package no.storebrand.shampoo;
+
+import org.jdom2.Element;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DeadlineTimerTest {
+    private final SoapRequest req = SoapRequest.soap11(new SoapBody(new Element("input")), Collections.emptyList(), SoapAction.of("echo"));
+
+    @Test
+    public void remaining() {
+        assertEquals(Optional.empty(), req.remaining());
+        assertEquals(Optional.of(Duration.ZERO), req.withDeadline(Instant.now().minusSeconds(1)).remaining());
+        Duration remaining = req.withTimeout(Duration.ofMinutes(1)).encode().remaining().get();
+        assertTrue(remaining.compareTo(Duration.ZERO) > 0 && remaining.compareTo(Duration.ofMinutes(1)) <= 0);
+    }
+
+    @Test
+    public void runsActionAtDeadline() throws Exception {
+        CountDownLatch aborted = new CountDownLatch(1);
+        try (DeadlineTimer timer = DeadlineTimer.start(req.withTimeout(Duration.ofMillis(50)), aborted::countDown)) {
+            assertTrue(aborted.await(5, TimeUnit.SECONDS));
+            assertTrue(timer.isExpired());
+            IOException e = new IOException("Socket closed");
+            SoapFault fault = timer.check(SoapCallRecorder.start(SoapClientListener.NONE, null, req.action), Result.failure(SoapFault.fromThrowable("soap:Client", e))).swap().toOptional().get();
+            assertEquals("Deadline exceeded", fault.message);
+            assertSame(e, fault.cause.get().getCause());
+        }
+    }
+
+    @Test
+    public void expiredBeforeStart() {
+        try (DeadlineTimer timer = DeadlineTimer.start(req.withDeadline(Instant.now().minusSeconds(1)), () -> fail("not started"))) {
+            assertTrue(timer.isExpired());
+        }
+    }
+
+    @Test
+    public void closedBeforeDeadline() throws Exception {
+        CountDownLatch aborted = new CountDownLatch(1);
+        DeadlineTimer timer = DeadlineTimer.start(req.withTimeout(Duration.ofMillis(50)), aborted::countDown);
+        timer.close();
+        assertFalse(aborted.await(200, TimeUnit.MILLISECONDS));
+        assertFalse(timer.isExpired());
+        Result<SoapFault, String> success = Result.success("ok");
+        assertSame(success, timer.check(SoapCallRecorder.start(SoapClientListener.NONE, null, req.action), success));
+    }
+}
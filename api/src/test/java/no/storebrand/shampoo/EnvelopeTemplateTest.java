@@ -0,0 +1,58 @@
+package no.storebrand.shampoo;
+
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import static no.storebrand.shampoo.JDOM2Utils.elem;
+import static org.junit.Assert.*;
+
+public class EnvelopeTemplateTest {
+    private final Namespace ns = Namespace.getNamespace("h", "http://example.org/Header");
+
+    @Test
+    public void writesSameBytesAsDocument() throws Exception {
+        SoapHeader token = new SoapHeader(elem("Token", ns, "secret"));
+        SoapHeader trace = new SoapHeader(elem("Trace", ns, "42"));
+        SoapBody body = new SoapBody(elem("Echo", Namespace.getNamespace("http://example.org/Echo"), "Hello"));
+
+        EnvelopeTemplate template = EnvelopeTemplate.soap12(Collections.singletonList(token));
+        SoapDocument templated = template.document(Collections.singletonList(trace), body);
+        SoapDocument plain = SoapDocument.soap12(Arrays.asList(token, trace), body);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        templated.write(output);
+        assertArrayEquals(plain.toCompactString().getBytes(StandardCharsets.UTF_8), output.toByteArray());
+        assertEquals(plain.toCompactString(), templated.toCompactString());
+        assertEquals(2, templated.header.size());
+        assertEquals(SoapDocument.SOAP_12, templated.ns);
+    }
+
+    @Test
+    public void staticHeaderIsEncodedOnce() {
+        Element token = elem("Token", ns, "secret");
+        EnvelopeTemplate template = EnvelopeTemplate.soap11(Collections.singletonList(new SoapHeader(token)));
+        token.setText("changed");
+
+        SoapRequest req = template.request(new SoapBody(elem("Echo", "Hello")), SoapAction.of("echo"));
+        Result<SoapFault, SoapDocument> reparsed = SoapDocument.fromString(req.soapDocument.toCompactString());
+        assertEquals(Optional.of("secret"), reparsed.toOptional().flatMap(d -> d.header.get(0).transform(JDOM2Utils::getText)));
+        assertEquals(Optional.of("Hello"), reparsed.toOptional().flatMap(d -> d.transform(JDOM2Utils::getText)));
+    }
+
+    @Test
+    public void writeUpTo() throws Exception {
+        EnvelopeTemplate template = EnvelopeTemplate.soap11(Collections.singletonList(new SoapHeader(elem("Token", ns, "secret"))));
+        SoapDocument doc = template.document(new SoapBody(elem("Echo", "Hello")));
+        int size = doc.toCompactString().getBytes(StandardCharsets.UTF_8).length;
+
+        assertTrue(doc.writeUpTo(new ByteArrayOutputStream(), size));
+        assertFalse(doc.writeUpTo(new ByteArrayOutputStream(), size - 1));
+    }
+}
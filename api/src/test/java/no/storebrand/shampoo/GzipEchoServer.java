@@ -0,0 +1,55 @@
+package no.storebrand.shampoo;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Echoes the request envelope back gzip compressed, and records the Content-Encoding of each request.
+ */
+public class GzipEchoServer {
+    public final List<String> requestEncodings = new CopyOnWriteArrayList<>();
+    public final HttpServer server;
+
+    public GzipEchoServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::echo);
+        server.start();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void echo(HttpExchange exchange) throws IOException {
+        String encoding = String.valueOf(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        requestEncodings.add(encoding);
+        ByteArrayOutputStream envelope = new ByteArrayOutputStream();
+        try (InputStream is = "gzip".equals(encoding) ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                envelope.write(buffer, 0, n);
+            }
+        }
+        exchange.getResponseHeaders().add("Content-Type", "text/xml; charset=utf-8");
+        exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream os = new GZIPOutputStream(exchange.getResponseBody())) {
+            envelope.writeTo(os);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package no.storebrand.shampoo;
+
+import org.jdom2.Element;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HedgingSoapClientTest {
+    private static final SoapAction LOOKUP = SoapAction.of("http://echo/Echo/lookup");
+    private static final SoapAction UPDATE = SoapAction.of("http://echo/Echo/update");
+
+    @Test
+    public void hedgesSlowCall() throws Exception {
+        ScriptedClient scripted = new ScriptedClient();
+        HedgingSoapClient client = HedgingSoapClient.of(scripted, LOOKUP);
+        warmUp(client);
+
+        scripted.hangNext = true;
+        CompletableFuture<Result<SoapFault, SoapDocument>> result = client.executeAsync(request(LOOKUP)).toCompletableFuture();
+        assertTrue(result.get(5, TimeUnit.SECONDS).isSuccess());
+
+        List<CompletableFuture<Result<SoapFault, SoapDocument>>> calls = scripted.calls;
+        assertTrue(calls.get(calls.size() - 2).isCancelled());
+        assertTrue(scripted.requests.get(scripted.requests.size() - 1).encoded.isPresent());
+        assertSame(scripted.requests.get(scripted.requests.size() - 2).encoded.get(), scripted.requests.get(scripted.requests.size() - 1).encoded.get());
+    }
+
+    @Test
+    public void hedgeWhichWinsRecordsItsOwnLatency() throws Exception {
+        ScriptedClient scripted = new ScriptedClient();
+        HedgingSoapClient client = HedgingSoapClient.of(scripted, LOOKUP).withBudget(1);
+        warmUp(client);
+
+        for (int i = 0; i < HedgingSoapClient.WINDOW_SIZE / 4; i++) {
+            scripted.hangNext = true;
+            assertTrue(client.executeAsync(request(LOOKUP)).toCompletableFuture().get(5, TimeUnit.SECONDS).isSuccess());
+        }
+        // the hedges answered at once, so the delay before they were sent is not part of the latency
+        assertTrue(client.percentileNanos(LOOKUP) < HedgingSoapClient.DEFAULT_MIN_DELAY.toNanos());
+    }
+
+    @Test
+    public void sendsHedgeOnExecutor() throws Exception {
+        ScriptedClient scripted = new ScriptedClient();
+        HedgingSoapClient client = HedgingSoapClient.of(scripted, LOOKUP).withExecutor(task -> new Thread(task, "hedge").start());
+        warmUp(client);
+
+        scripted.hangNext = true;
+        assertTrue(client.executeAsync(request(LOOKUP)).toCompletableFuture().get(5, TimeUnit.SECONDS).isSuccess());
+        assertEquals("hedge", scripted.threads.get(scripted.threads.size() - 1));
+    }
+
+    @Test
+    public void rejectedHedgeDoesNotHideCall() throws Exception {
+        ScriptedClient scripted = new ScriptedClient();
+        HedgingSoapClient client = HedgingSoapClient.of(scripted, LOOKUP).withExecutor(task -> {
+            throw new RejectedExecutionException("shut down");
+        });
+        warmUp(client);
+
+        scripted.hangNext = true;
+        CompletableFuture<Result<SoapFault, SoapDocument>> result = client.executeAsync(request(LOOKUP)).toCompletableFuture();
+        Thread.sleep(100);
+        assertFalse(result.isDone());
+        scripted.calls.get(scripted.calls.size() - 1).complete(Result.success(request(LOOKUP).soapDocument));
+        assertTrue(result.get(5, TimeUnit.SECONDS).isSuccess());
+    }
+
+    @Test
+    public void doesNotHedgeOtherActions() throws Exception {
+        ScriptedClient scripted = new ScriptedClient();
+        HedgingSoapClient client = HedgingSoapClient.of(scripted, LOOKUP);
+        warmUp(client);
+        for (int i = 0; i < 100; i++) {
+            client.execute(request(UPDATE));
+        }
+
+        scripted.hangNext = true;
+        CompletableFuture<Result<SoapFault, SoapDocument>> result = client.executeAsync(request(UPDATE)).toCompletableFuture();
+        Thread.sleep(100);
+        assertFalse(result.isDone());
+        assertFalse(scripted.requests.get(scripted.requests.size() - 1).encoded.isPresent());
+    }
+
+    @Test
+    public void hedgesWithinBudget() throws Exception {
+        ScriptedClient scripted = new ScriptedClient();
+        HedgingSoapClient client = HedgingSoapClient.of(scripted, LOOKUP).withBudget(0);
+        warmUp(client);
+
+        scripted.hangNext = true;
+        int calls = scripted.calls.size();
+        CompletableFuture<Result<SoapFault, SoapDocument>> result = client.executeAsync(request(LOOKUP)).toCompletableFuture();
+        Thread.sleep(100);
+        assertFalse(result.isDone());
+        assertEquals(calls + 1, scripted.calls.size());
+    }
+
+    @Test
+    public void failureBeforeHedgeIsReturned() {
+        SoapClient failing = req -> Result.failure(SoapFault.server("No such customer"));
+        assertEquals(Result.failure(SoapFault.server("No such customer")), HedgingSoapClient.of(failing, LOOKUP).execute(request(LOOKUP)));
+    }
+
+    private static void warmUp(HedgingSoapClient client) {
+        for (int i = 0; i < HedgingSoapClient.WINDOW_SIZE; i++) {
+            assertTrue(client.execute(request(LOOKUP)).isSuccess());
+        }
+    }
+
+    private static SoapRequest request(SoapAction action) {
+        return SoapRequest.soap11(new SoapBody(new Element("input")), Collections.emptyList(), action);
+    }
+
+    private static final class ScriptedClient implements SoapClient {
+        final List<SoapRequest> requests = new CopyOnWriteArrayList<>();
+        final List<CompletableFuture<Result<SoapFault, SoapDocument>>> calls = new CopyOnWriteArrayList<>();
+        final List<String> threads = new CopyOnWriteArrayList<>();
+        volatile boolean hangNext;
+
+        @Override
+        public Result<SoapFault, SoapDocument> execute(SoapRequest req) {
+            return executeAsync(req).toCompletableFuture().join();
+        }
+
+        @Override
+        public CompletionStage<Result<SoapFault, SoapDocument>> executeAsync(SoapRequest req) {
+            requests.add(req);
+            threads.add(Thread.currentThread().getName());
+            CompletableFuture<Result<SoapFault, SoapDocument>> call = new CompletableFuture<>();
+            calls.add(call);
+            if (hangNext) {
+                hangNext = false;
+            } else {
+                call.complete(Result.success(req.soapDocument));
+            }
+            return call;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package no.storebrand.shampoo;
+
+import org.jdom2.Element;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RetryingSoapClientTest {
+    private static final SoapAction LOOKUP = SoapAction.of("http://echo/Echo/lookup");
+    private static final SoapAction UPDATE = SoapAction.of("http://echo/Echo/update");
+    private static final RetryPolicy POLICY = RetryPolicy.DEFAULT
+            .withBackoff(Duration.ofMillis(1), Duration.ofMillis(10))
+            .withIdempotent(LOOKUP::equals);
+
+    private static final SoapFault RESET = SoapFault.fromThrowable("soap:Client", new IOException("Connection reset"));
+    private static final SoapFault REFUSED = SoapFault.fromThrowable("soap:Client", new ConnectException("Connection refused"));
+
+    @Test
+    public void retriesTransportFailureOfIdempotentAction() {
+        ScriptedClient scripted = new ScriptedClient(Result.failure(RESET), Result.failure(RESET), success());
+        Result<SoapFault, SoapDocument> result = RetryingSoapClient.of(scripted, POLICY).execute(request(LOOKUP));
+
+        assertTrue(result.isSuccess());
+        assertEquals(3, scripted.requests.size());
+        // every attempt sends the bytes encoded for the first
+        assertSame(scripted.requests.get(0).encoded.get(), scripted.requests.get(2).encoded.get());
+    }
+
+    @Test
+    public void retriesOnlyUnsentCallsOfOtherActions() {
+        ScriptedClient reset = new ScriptedClient(Result.failure(RESET), success());
+        assertEquals(Result.failure(RESET), RetryingSoapClient.of(reset, POLICY).execute(request(UPDATE)));
+        assertEquals(1, reset.requests.size());
+
+        ScriptedClient refused = new ScriptedClient(Result.failure(REFUSED), success());
+        assertTrue(RetryingSoapClient.of(refused, POLICY).execute(request(UPDATE)).isSuccess());
+        assertEquals(2, refused.requests.size());
+    }
+
+    @Test
+    public void doesNotRetrySoapFaults() {
+        ScriptedClient scripted = new ScriptedClient(Result.failure(SoapFault.server("No such customer")), success());
+        assertEquals(Result.failure(SoapFault.server("No such customer")), RetryingSoapClient.of(scripted, POLICY).execute(request(LOOKUP)));
+        assertEquals(1, scripted.requests.size());
+    }
+
+    @Test
+    public void returnsLastFaultAfterMaxAttempts() {
+        ScriptedClient scripted = new ScriptedClient(Result.failure(RESET), Result.failure(RESET), Result.failure(REFUSED), success());
+        assertEquals(Result.failure(REFUSED), RetryingSoapClient.of(scripted, POLICY).execute(request(LOOKUP)));
+        assertEquals(3, scripted.requests.size());
+    }
+
+    @Test
+    public void budgetLimitsRetries() {
+        ScriptedClient scripted = new ScriptedClient(Collections.nCopies(1000, Result.failure(RESET)));
+        RetryingSoapClient client = RetryingSoapClient.of(scripted, POLICY.withBudget(0.1));
+        for (int i = 0; i < 100; i++) {
+            client.execute(request(LOOKUP));
+        }
+        // 100 calls, the reserve of 10 retries and 0.1 retry per call
+        assertTrue(scripted.requests.size() <= 100 + 10 + 10);
+    }
+
+    @Test
+    public void doesNotRetryPastDeadline() {
+        ScriptedClient scripted = new ScriptedClient(Result.failure(SoapFault.fromThrowable("soap:Client", new SocketTimeoutException("Read timed out"))), success());
+        RetryingSoapClient client = RetryingSoapClient.of(scripted, POLICY.withBackoff(Duration.ofSeconds(10), Duration.ofSeconds(10)));
+        // the backoff is random, but only at most a millisecond is left
+        for (int i = 0; i < 5; i++) {
+            scripted.reset(Result.failure(SoapFault.fromThrowable("soap:Client", new SocketTimeoutException("Read timed out"))), success());
+            SoapRequest req = request(LOOKUP).withTimeout(Duration.ofMillis(1));
+            client.execute(req);
+            assertTrue(scripted.requests.size() <= 2);
+        }
+    }
+
+    @Test
+    public void retriesAsync() throws Exception {
+        ScriptedClient scripted = new ScriptedClient(Result.failure(REFUSED), Result.failure(REFUSED), success());
+        CompletionStage<Result<SoapFault, SoapDocument>> result = RetryingSoapClient.of(scripted, POLICY).executeAsync(request(UPDATE));
+        assertTrue(result.toCompletableFuture().get(5, TimeUnit.SECONDS).isSuccess());
+        assertEquals(3, scripted.requests.size());
+    }
+
+    @Test
+    public void retriesAsyncOnExecutor() throws Exception {
+        ScriptedClient scripted = new ScriptedClient(Result.failure(REFUSED), success());
+        RetryingSoapClient client = RetryingSoapClient.of(scripted, POLICY).withExecutor(task -> new Thread(task, "retry").start());
+        assertTrue(client.executeAsync(request(UPDATE)).toCompletableFuture().get(5, TimeUnit.SECONDS).isSuccess());
+        assertEquals(Arrays.asList(Thread.currentThread().getName(), "retry"), scripted.threads);
+    }
+
+    @Test
+    public void rejectedRetryReturnsFault() throws Exception {
+        ScriptedClient scripted = new ScriptedClient(Result.failure(REFUSED), success());
+        RetryingSoapClient client = RetryingSoapClient.of(scripted, POLICY).withExecutor(task -> {
+            throw new RejectedExecutionException("shut down");
+        });
+        assertEquals(Result.failure(REFUSED), client.executeAsync(request(UPDATE)).toCompletableFuture().get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void retryableFaults() {
+        assertTrue(POLICY.isRetryable(UPDATE, SoapFault.overloaded("Concurrency limit of 1 reached")));
+        assertTrue(POLICY.isRetryable(LOOKUP, SoapFault.httpStatus(503)));
+        assertFalse(POLICY.isRetryable(UPDATE, SoapFault.httpStatus(503)));
+        assertFalse(POLICY.isRetryable(LOOKUP, SoapFault.httpStatus(404)));
+        assertFalse(POLICY.isRetryable(LOOKUP, SoapFault.parse("Unexpected end of file")));
+    }
+
+    private static Result<SoapFault, SoapDocument> success() {
+        return Result.success(request(LOOKUP).soapDocument);
+    }
+
+    private static SoapRequest request(SoapAction action) {
+        return SoapRequest.soap11(new SoapBody(new Element("input")), Collections.emptyList(), action);
+    }
+
+    private static final class ScriptedClient implements SoapClient {
+        final List<SoapRequest> requests = new ArrayList<>();
+        final List<String> threads = new ArrayList<>();
+        private Iterator<Result<SoapFault, SoapDocument>> results;
+
+        @SafeVarargs
+        ScriptedClient(Result<SoapFault, SoapDocument>... results) {
+            reset(results);
+        }
+
+        ScriptedClient(List<Result<SoapFault, SoapDocument>> results) {
+            reset(results);
+        }
+
+        @SafeVarargs
+        final void reset(Result<SoapFault, SoapDocument>... results) {
+            reset(Arrays.asList(results));
+        }
+
+        void reset(List<Result<SoapFault, SoapDocument>> results) {
+            this.requests.clear();
+            this.threads.clear();
+            this.results = results.iterator();
+        }
+
+        @Override
+        public synchronized Result<SoapFault, SoapDocument> execute(SoapRequest req) {
+            requests.add(req);
+            threads.add(Thread.currentThread().getName());
+            return results.next();
+        }
+    }
+}
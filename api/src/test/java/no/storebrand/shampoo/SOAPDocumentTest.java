@@ -3,8 +3,22 @@ package no.storebrand.shampoo;
 import org.jdom2.Namespace;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
 import static no.storebrand.shampoo.JDOM2Utils.elem;
 import static org.junit.Assert.*;
@@ -57,4 +71,164 @@ public class SOAPDocumentTest {
         assertTrue(SoapDocument.fromInputSource(null).isFailure());
         assertTrue(SoapDocument.fromDocument(null).isFailure());
     }
+
+    @Test
+    public void readFaultIgnoresRest() {
+        StringBuilder envelope = new StringBuilder("<env:Envelope xmlns:env=\"http://schemas.xmlsoap.org/soap/envelope/\"><env:Body>")
+                .append("<env:Fault><faultcode>env:Server</faultcode><faultstring>Overloaded</faultstring></env:Fault>");
+        for (int i = 0; i < 100_000; i++) {
+            envelope.append("<Trailing>").append(i).append("</Trailing>");
+        }
+        envelope.append("</env:Body></env:Envelope>");
+        byte[] bytes = envelope.toString().getBytes(StandardCharsets.UTF_8);
+        ByteArrayInputStream input = new ByteArrayInputStream(bytes);
+
+        SoapFault fault = SoapDocument.readFault(input);
+        assertEquals("env:Server", fault.code);
+        assertEquals("Overloaded", fault.message);
+        assertEquals(0, input.available());
+    }
+
+    @Test
+    public void readFaultWithoutFault() {
+        SoapFault fault = SoapDocument.readFault(getClass().getResourceAsStream("/soap/soap11records.xml"));
+        assertEquals("soap:Server", fault.code);
+    }
+
+    @Test
+    public void readFaultFromErrorPage() {
+        byte[] page = "<html><body>Service Unavailable</body></html>".getBytes(StandardCharsets.UTF_8);
+        assertEquals(SoapFault.httpStatus(503), SoapDocument.readFault(new ByteArrayInputStream(page), 503));
+        assertEquals(SoapFault.Kind.PARSE, SoapDocument.fromStream(new ByteArrayInputStream(page)).swap().toOptional().map(SoapFault::kind).orElse(null));
+    }
+
+    @Test
+    public void readFailureKeepsCause() {
+        assertEquals(Optional.of(SoapFault.Kind.TIMEOUT), SoapDocument.fromStream(timingOut()).swap().toOptional().map(SoapFault::kind));
+        // an error response which could not be read is not taken as a response without a SOAP Fault
+        assertEquals(SoapFault.Kind.TIMEOUT, SoapDocument.readFault(timingOut(), 500).kind());
+
+        // bytes which are not valid UTF-8 are a malformed document, even though the parser throws an IOException
+        byte[] invalid = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">\u00e6".getBytes(StandardCharsets.ISO_8859_1);
+        assertEquals(Optional.of(SoapFault.Kind.PARSE), SoapDocument.fromStream(new ByteArrayInputStream(invalid)).swap().toOptional().map(SoapFault::kind));
+    }
+
+    /**
+     * The start of an envelope, followed by a read timeout.
+     */
+    private static InputStream timingOut() {
+        byte[] half = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>".getBytes(StandardCharsets.UTF_8);
+        return new SequenceInputStream(new ByteArrayInputStream(half), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new SocketTimeoutException("Read timed out");
+            }
+        });
+    }
+
+    @Test
+    public void writeUpTo() throws Exception {
+        SoapDocument doc = SoapDocument.soap11(Collections.emptyList(), new SoapBody(elem("Echo", Namespace.getNamespace("http://example.org/Echo"), "Hello")));
+        byte[] expected = doc.toCompactString().getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream exact = new ByteArrayOutputStream();
+        assertTrue(doc.writeUpTo(exact, expected.length));
+        assertArrayEquals(expected, exact.toByteArray());
+
+        ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+        assertFalse(doc.writeUpTo(truncated, expected.length - 1));
+        assertTrue(truncated.size() < expected.length);
+    }
+
+    @Test
+    public void writeDoesNotChangeDocument() throws Exception {
+        Namespace ns = Namespace.getNamespace("h", "http://example.org/Header");
+        SoapDocument doc = SoapDocument.soap12(
+                Collections.singletonList(new SoapHeader(elem("Token", ns, "secret"))),
+                new SoapBody(elem("Echo", Namespace.getNamespace("http://example.org/Echo"), "Hello")));
+        byte[] expected = doc.toCompactString().getBytes(StandardCharsets.UTF_8);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> writes = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                writes.add(executor.submit(() -> {
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    doc.write(output);
+                    return output.toByteArray();
+                }));
+            }
+            for (Future<byte[]> write : writes) {
+                assertArrayEquals(expected, write.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        doc.toString();
+        assertNull(doc.body.body.getParent());
+        assertNull(doc.header.get(0).element.getParent());
+        assertEquals(Optional.of("secret"), SoapDocument.fromString(new String(expected, StandardCharsets.UTF_8))
+                .toOptional().flatMap(d -> d.header.get(0).transform(JDOM2Utils::getText)));
+    }
+
+    @Test
+    public void encodedRequest() throws Exception {
+        SoapRequest req = SoapRequest.soap11(new SoapBody(elem("Echo", Namespace.getNamespace("http://example.org/Echo"), "Hello")), Collections.emptyList(), SoapAction.of("echo"))
+                .encode()
+                .setHttpHeader("X-Test", "1");
+        assertTrue(req.encoded.isPresent());
+        EncodedRequest encoded = req.encoded.get();
+        assertEquals("text/xml; charset=utf-8", encoded.contentType);
+        assertEquals("\"echo\"", encoded.soapAction);
+        assertArrayEquals(req.soapDocument.toCompactString().getBytes(StandardCharsets.UTF_8), encoded.toByteArray());
+        assertEquals(encoded.size(), encoded.toByteArray().length);
+        assertSame(req, req.encode());
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        encoded.writeGzippedTo(gzipped);
+        assertEquals(encoded.gzippedSize(), gzipped.size());
+        try (InputStream decompressed = new GZIPInputStream(encoded.newGzippedInputStream())) {
+            assertArrayEquals(encoded.toByteArray(), readAll(decompressed));
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int n = input.read(buffer); n != -1; n = input.read(buffer)) {
+            output.write(buffer, 0, n);
+        }
+        return output.toByteArray();
+    }
+
+    @Test
+    public void listener() throws Exception {
+        List<String> operations = new ArrayList<>();
+        SoapDocument.setListener(new SoapDocumentListener() {
+            @Override
+            public Operation parsing() {
+                return (bytes, fault) -> operations.add("parse " + bytes + " " + fault.map(f -> f.code).orElse("ok"));
+            }
+
+            @Override
+            public Operation writing() {
+                return (bytes, fault) -> operations.add("write " + bytes + " " + fault.map(f -> f.code).orElse("ok"));
+            }
+        });
+        try {
+            SoapDocument doc = SoapDocument.soap11(Collections.emptyList(), new SoapBody(elem("input", Namespace.getNamespace("http://echo"), "Hello")));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            doc.write(output);
+            SoapDocument.fromStream(new ByteArrayInputStream(output.toByteArray()));
+            SoapDocument.fromString("<soap:Envelope");
+
+            assertEquals(Arrays.asList(
+                    "write " + output.size() + " ok",
+                    "parse " + output.size() + " ok",
+                    "parse -1 parse"
+            ), operations);
+        } finally {
+            SoapDocument.setListener(SoapDocumentListener.NONE);
+        }
+    }
 }
@@ -0,0 +1,162 @@
+package no.storebrand.shampoo;
+
+import org.jdom2.Element;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class SoapBatchTest {
+
+    @Test
+    public void resultsInOrderWithBoundedParallelism() {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            AtomicInteger inFlight = new AtomicInteger();
+            AtomicInteger maxInFlight = new AtomicInteger();
+            SoapClient client = new SoapClient() {
+                @Override
+                public Result<SoapFault, SoapDocument> execute(SoapRequest req) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public CompletionStage<Result<SoapFault, SoapDocument>> executeAsync(SoapRequest req) {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    return CompletableFuture.supplyAsync(() -> {
+                        sleep(1);
+                        inFlight.decrementAndGet();
+                        return echo(req);
+                    }, executor);
+                }
+            };
+            List<Result<SoapFault, SoapDocument>> results = client.executeAll(requests(200), 4);
+
+            assertEquals(inputs(200), results.stream().map(SoapBatchTest::input).collect(Collectors.toList()));
+            assertTrue(maxInFlight.get() <= 4);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void collectsFaults() {
+        SoapClient client = req -> input(req).equals("3") ? Result.failure(SoapFault.server("Overloaded")) : echo(req);
+        List<Result<SoapFault, SoapDocument>> results = client.executeAll(requests(5), 2);
+
+        assertEquals(5, results.size());
+        assertEquals(Result.failure(SoapFault.server("Overloaded")), results.get(3));
+        assertEquals("4", input(results.get(4)));
+    }
+
+    @Test
+    public void failFastStopsStartingCalls() {
+        AtomicInteger calls = new AtomicInteger();
+        SoapClient client = req -> {
+            calls.incrementAndGet();
+            return input(req).equals("3") ? Result.failure(SoapFault.server("Overloaded")) : echo(req);
+        };
+        assertEquals(Result.failure(SoapFault.server("Overloaded")), client.executeAllFailFast(requests(100), 1));
+        assertEquals(4, calls.get());
+
+        Result<SoapFault, List<SoapDocument>> all = ((SoapClient) SoapBatchTest::echo).executeAllFailFast(requests(3), 2);
+        assertEquals(3, all.toOptional().get().size());
+    }
+
+    @Test
+    public void failFastCancelsCallStartedDuringFailure() {
+        List<CompletableFuture<Result<SoapFault, SoapDocument>>> calls = new CopyOnWriteArrayList<>();
+        SoapClient client = new SoapClient() {
+            @Override
+            public Result<SoapFault, SoapDocument> execute(SoapRequest req) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletionStage<Result<SoapFault, SoapDocument>> executeAsync(SoapRequest req) {
+                if (input(req).equals("2")) {
+                    // the first call fails while the third is being started
+                    calls.get(0).complete(Result.failure(SoapFault.server("Overloaded")));
+                }
+                CompletableFuture<Result<SoapFault, SoapDocument>> call = new CompletableFuture<>();
+                calls.add(call);
+                return call;
+            }
+        };
+        CompletableFuture<Result<SoapFault, List<SoapDocument>>> result = client.executeAllFailFastAsync(requests(3), 2).toCompletableFuture();
+        // the second call completing starts the third
+        calls.get(1).complete(echo(requests(1).get(0)));
+        assertEquals(Result.failure(SoapFault.server("Overloaded")), result.join());
+        assertTrue(calls.get(2).isCancelled());
+    }
+
+    @Test
+    public void synchronousClientDoesNotGrowStack() {
+        SoapClient client = SoapBatchTest::echo;
+        assertEquals(inputs(20_000), client.executeAll(requests(20_000), 8).stream().map(SoapBatchTest::input).collect(Collectors.toList()));
+        assertEquals(Collections.emptyList(), client.executeAll(Collections.emptyList(), 8));
+    }
+
+    @Test
+    public void exceptionalStageIsFault() {
+        SoapClient client = new SoapClient() {
+            @Override
+            public Result<SoapFault, SoapDocument> execute(SoapRequest req) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletionStage<Result<SoapFault, SoapDocument>> executeAsync(SoapRequest req) {
+                CompletableFuture<Result<SoapFault, SoapDocument>> future = new CompletableFuture<>();
+                future.completeExceptionally(new IllegalStateException("Closed"));
+                return future;
+            }
+        };
+        List<Result<SoapFault, SoapDocument>> results = client.executeAll(requests(2), 2);
+        assertEquals(Collections.nCopies(2, Result.failure(SoapFault.client("Closed"))), results);
+    }
+
+    private static List<String> inputs(int n) {
+        return IntStream.range(0, n).mapToObj(String::valueOf).collect(Collectors.toList());
+    }
+
+    private static List<SoapRequest> requests(int n) {
+        List<SoapRequest> requests = new ArrayList<>();
+        for (String input : inputs(n)) {
+            requests.add(SoapRequest.soap11(SoapBody.from(input, s -> new Element("input").setText(s)), Collections.emptyList(), SoapAction.of("echo")));
+        }
+        return requests;
+    }
+
+    private static Result<SoapFault, SoapDocument> echo(SoapRequest req) {
+        return Result.success(req.soapDocument);
+    }
+
+    private static String input(SoapRequest req) {
+        return req.soapDocument.body.body.getText();
+    }
+
+    private static String input(Result<SoapFault, SoapDocument> result) {
+        return result.toOptional().map(doc -> doc.body.body.getText()).orElse(null);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
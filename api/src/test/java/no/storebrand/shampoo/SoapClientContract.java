@@ -0,0 +1,231 @@
+package no.storebrand.shampoo;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.jdom2.Namespace;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static no.storebrand.shampoo.JDOM2Utils.elem;
+import static org.junit.Assert.*;
+
+/**
+ * Behaviour every transport must have, run against in-process servers. Each client module extends it in its
+ * {@code SoapClientTest}. Shared with the client modules through the test-jar of shampoo-api.
+ */
+public abstract class SoapClientContract {
+    private static final Namespace NS = Namespace.getNamespace("http://echo");
+    private static final byte[] FAULT = ("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body><soap:Fault>" +
+            "<faultcode>soap:Server</faultcode><faultstring>Overloaded</faultstring></soap:Fault></soap:Body></soap:Envelope>").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FOUND = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body><found/></soap:Body></soap:Envelope>".getBytes(StandardCharsets.UTF_8);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private HttpServer server;
+    private ServerSocket socket;
+
+    /**
+     * The client under test. Clients which need an executor for asynchronous calls run them on {@code executor}.
+     */
+    protected abstract SoapClient client(URI uri, RequestCompression compression, Executor executor);
+
+    @After
+    public void stopServer() {
+        release.countDown();
+        if (server != null) {
+            server.stop(0);
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void compression() throws Exception {
+        GzipEchoServer gzipServer = new GzipEchoServer();
+        try {
+            SoapClient client = client(URI.create(String.format("http://localhost:%s", gzipServer.port())), RequestCompression.gzip(), executor);
+            // not compressed, compressed with a Content-Length, and compressed while streamed
+            for (int size : new int[]{10, 10_000, 100_000}) {
+                String input = String.join("", Collections.nCopies(size, "a"));
+                SoapRequest req = request("echoRequest", input, SoapAction.of("http://echo/Echo/echo"));
+                // an encoded request is sent twice, as its compressed bytes are kept
+                SoapRequest encoded = req.encode();
+                for (SoapRequest sent : Arrays.asList(req, encoded, encoded)) {
+                    Result<SoapFault, SoapDocument> result = client.execute(sent);
+                    assertEquals(Optional.of(input), result.toOptional().flatMap(doc -> doc.transform(e -> JDOM2Utils.getChildText(e, "input", NS))));
+                }
+            }
+            assertEquals(Arrays.asList("null", "null", "null", "gzip", "gzip", "gzip", "gzip", "gzip", "gzip"), gzipServer.requestEncodings);
+        } finally {
+            gzipServer.stop();
+        }
+    }
+
+    @Test
+    public void fault() throws Exception {
+        SoapClient client = serve(exchange -> {
+            exchange.getRequestBody().close();
+            exchange.getResponseHeaders().add("Content-Type", "text/xml; charset=utf-8");
+            exchange.sendResponseHeaders(500, FAULT.length);
+            exchange.getResponseBody().write(FAULT);
+            exchange.close();
+        });
+        Result<SoapFault, SoapDocument> result = client.execute(echoRequest());
+        assertEquals(Result.failure(new SoapFault("soap:Server", "Overloaded", Optional.empty())), result);
+    }
+
+    @Test
+    public void httpStatus() throws Exception {
+        SoapClient client = serve(exchange -> {
+            exchange.getRequestBody().close();
+            byte[] page = "<html><body>Service Unavailable</body></html>".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/html");
+            exchange.sendResponseHeaders(503, page.length);
+            exchange.getResponseBody().write(page);
+            exchange.close();
+        });
+        Result<SoapFault, SoapDocument> result = client.execute(echoRequest());
+        assertEquals(Result.failure(SoapFault.httpStatus(503)), result);
+        assertEquals(Optional.of(SoapFault.Kind.HTTP_STATUS), result.swap().toOptional().map(SoapFault::kind));
+    }
+
+    @Test
+    public void resetWhileBodyIsRead() throws Exception {
+        socket = new ServerSocket(0, 50, null);
+        executor.execute(() -> {
+            while (!socket.isClosed()) {
+                try (Socket connection = socket.accept()) {
+                    readHead(connection.getInputStream());
+                    OutputStream out = connection.getOutputStream();
+                    // promises a longer body than is sent, and resets the connection halfway through the envelope
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/xml; charset=utf-8\r\nContent-Length: " + FOUND.length * 2 + "\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                    out.write(FOUND, 0, FOUND.length / 2);
+                    out.flush();
+                    Thread.sleep(300);
+                    connection.setSoLinger(true, 0);
+                } catch (IOException | InterruptedException ignore) {
+                }
+            }
+        });
+        SoapClient client = client(URI.create(String.format("http://localhost:%s", socket.getLocalPort())), RequestCompression.NONE, executor);
+        Result<SoapFault, SoapDocument> result = client.execute(echoRequest());
+        assertEquals(Optional.of(SoapFault.Kind.TRANSPORT), result.swap().toOptional().map(SoapFault::kind));
+    }
+
+    @Test
+    public void deadline() throws Exception {
+        SoapClient client = serve(exchange -> {
+            exchange.getRequestBody().close();
+            // the headers and the start of the envelope are sent, and then the response stalls
+            exchange.getResponseHeaders().add("Content-Type", "text/xml; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().write("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">".getBytes(StandardCharsets.UTF_8));
+            exchange.getResponseBody().flush();
+            awaitRelease();
+            exchange.close();
+        });
+        SoapRequest req = echoRequest();
+        long start = System.nanoTime();
+        Result<SoapFault, SoapDocument> result = client.execute(req.withTimeout(Duration.ofMillis(300)));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertEquals(Optional.of("Deadline exceeded"), result.swap().toOptional().map(f -> f.message));
+
+        Result<SoapFault, SoapDocument> async = client.executeAsync(req.withTimeout(Duration.ofMillis(300))).toCompletableFuture().get(5, TimeUnit.SECONDS);
+        assertEquals(Optional.of("Deadline exceeded"), async.swap().toOptional().map(f -> f.message));
+
+        Result<SoapFault, SoapDocument> expired = client.execute(req.withDeadline(Instant.now().minusSeconds(1)));
+        assertEquals(Optional.of("Deadline exceeded"), expired.swap().toOptional().map(f -> f.message));
+    }
+
+    @Test
+    public void hedging() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        SoapClient client = serve(exchange -> {
+            exchange.getRequestBody().close();
+            // the call after the warm up stalls, so that it is hedged
+            if (requests.incrementAndGet() == 65) {
+                awaitRelease();
+            }
+            exchange.getResponseHeaders().add("Content-Type", "text/xml; charset=utf-8");
+            exchange.sendResponseHeaders(200, FOUND.length);
+            exchange.getResponseBody().write(FOUND);
+            exchange.close();
+        });
+        SoapAction lookup = SoapAction.of("http://echo/Echo/lookup");
+        SoapClient hedging = HedgingSoapClient.of(client, lookup);
+        SoapRequest req = request("lookupRequest", "Hello", lookup);
+        for (int i = 0; i < 64; i++) {
+            assertTrue(hedging.execute(req).isSuccess());
+        }
+        long start = System.nanoTime();
+        assertTrue(hedging.execute(req).isSuccess());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertEquals(66, requests.get());
+    }
+
+    /**
+     * Starts a server answering every request with {@code handler}, and returns a client sending to it.
+     */
+    private SoapClient serve(HttpHandler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", handler);
+        server.setExecutor(executor);
+        server.start();
+        return client(URI.create(String.format("http://localhost:%s", server.getAddress().getPort())), RequestCompression.NONE, executor);
+    }
+
+    /**
+     * Reads the request line and headers, leaving the body unread.
+     */
+    private static void readHead(InputStream in) throws IOException {
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed before the request was read");
+            }
+            matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : b == '\r' ? 1 : 0;
+        }
+    }
+
+    private void awaitRelease() {
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ignore) {
+        }
+    }
+
+    private static SoapRequest echoRequest() {
+        return request("echoRequest", "Hello", SoapAction.of("http://echo/Echo/echo"));
+    }
+
+    private static SoapRequest request(String name, String input, SoapAction action) {
+        return SoapRequest.soap11(SoapBody.from(input, s -> elem(name, NS, elem("input", NS, s))), Collections.emptyList(), action);
+    }
+}
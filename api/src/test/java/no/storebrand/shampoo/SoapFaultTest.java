@@ -0,0 +1,55 @@
+package no.storebrand.shampoo;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class SoapFaultTest {
+
+    @Test
+    public void fromThrowableKeepsCause() {
+        IOException e = new IOException("Connection refused");
+        SoapFault fault = SoapFault.fromThrowable("soap:Client", e);
+        assertEquals("soap:Client", fault.code);
+        assertEquals("Connection refused", fault.message);
+        assertEquals(Optional.empty(), fault.detail);
+        assertSame(e, fault.cause.get());
+        assertTrue(fault.stackTrace().get().contains("java.io.IOException: Connection refused"));
+    }
+
+    @Test
+    public void causeIsNotPartOfEquality() {
+        assertEquals(SoapFault.client("Connection refused"), SoapFault.fromThrowable("soap:Client", new IOException("Connection refused")));
+    }
+
+    @Test
+    public void exceptionWithoutMessage() {
+        SoapFault fault = SoapFault.exception("soap:Server", new NullPointerException());
+        assertEquals("java.lang.NullPointerException", fault.message);
+        assertEquals(fault.stackTrace(), fault.detail);
+        assertEquals("java.lang.IllegalStateException", SoapFault.fromThrowable("soap:Server", new IllegalStateException()).message);
+    }
+
+    @Test
+    public void faultWithoutCause() {
+        assertEquals(Optional.empty(), SoapFault.server("Overloaded").stackTrace());
+    }
+
+    @Test
+    public void kind() {
+        assertEquals(SoapFault.Kind.CONNECT, SoapFault.fromThrowable("soap:Client", new java.net.ConnectException("Connection refused")).kind());
+        assertEquals(SoapFault.Kind.TRANSPORT, SoapFault.fromThrowable("soap:Server", new IOException("Connection reset")).kind());
+        assertEquals(SoapFault.Kind.TIMEOUT, SoapFault.fromThrowable("soap:Client", new java.net.SocketTimeoutException("Read timed out")).kind());
+        assertEquals(SoapFault.Kind.TIMEOUT, DeadlineTimer.fault(null).kind());
+        assertEquals(SoapFault.Kind.HTTP_STATUS, SoapFault.httpStatus(503).kind());
+        assertEquals(SoapFault.Kind.OVERLOADED, SoapFault.overloaded("Concurrency limit of 1 reached").kind());
+        assertEquals(SoapFault.Kind.PARSE, SoapFault.parse("Unexpected end of file").kind());
+        assertEquals(SoapFault.Kind.SERVER, SoapFault.server("Overloaded").kind());
+        assertEquals(SoapFault.Kind.SERVER, new SoapFault("env:Receiver", "Overloaded", Optional.empty()).kind());
+        assertEquals(SoapFault.Kind.CLIENT, SoapFault.client("No such customer").kind());
+        assertEquals(SoapFault.Kind.CLIENT, SoapFault.fromThrowable("soap:Client", new IllegalStateException()).kind());
+    }
+}
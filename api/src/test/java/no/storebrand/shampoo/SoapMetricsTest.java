@@ -0,0 +1,86 @@
+package no.storebrand.shampoo;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SoapMetricsTest {
+    private static final URI endpoint = URI.create("http://localhost/service");
+    private static final SoapAction action = SoapAction.of("http://example.org/lookup");
+
+    @Test
+    public void histogramBuckets() {
+        int previous = -1;
+        for (long value = 0; value < 100_000; value++) {
+            int index = LatencyHistogram.index(value);
+            assertTrue("index of " + value, index == previous || index == previous + 1);
+            assertTrue(value <= LatencyHistogram.upperBound(index));
+            assertTrue(LatencyHistogram.upperBound(index) - value <= value / LatencyHistogram.SUB_BUCKETS);
+            previous = index;
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.count);
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), snapshot.maxNanos);
+        assertEquals(500, snapshot.percentile(50, TimeUnit.MICROSECONDS), 500 * 0.125);
+        assertEquals(990, snapshot.percentile(99, TimeUnit.MICROSECONDS), 990 * 0.125);
+        assertEquals(snapshot.maxNanos, snapshot.percentileNanos(100));
+    }
+
+    @Test
+    public void countsPerAction() {
+        SoapMetrics metrics = new SoapMetrics();
+        metrics.onCall(event(Optional.empty(), false, 1_000_000));
+        metrics.onCall(event(Optional.of(SoapFault.server("failed")), false, 2_000_000));
+        metrics.onCall(event(Optional.of(SoapFault.client("timeout")), true, 3_000_000));
+
+        SoapMetrics.Snapshot snapshot = metrics.snapshot(endpoint, action).get();
+        assertEquals(3, snapshot.calls);
+        assertEquals(2, snapshot.faults);
+        assertEquals(1, snapshot.timeouts);
+        assertEquals(3, snapshot.latency.count);
+        assertFalse(metrics.snapshot(endpoint, SoapAction.of("other")).isPresent());
+        assertEquals(1, metrics.snapshots().size());
+    }
+
+    @Test
+    public void concurrentRecording() throws Exception {
+        SoapMetrics metrics = new SoapMetrics();
+        SoapCallEvent event = event(Optional.empty(), false, 1_000);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int t = 0; t < 8; t++) {
+                executor.execute(() -> {
+                    for (int i = 0; i < 10_000; i++) {
+                        metrics.onCall(event);
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        SoapMetrics.Snapshot snapshot = metrics.snapshot(endpoint, action).get();
+        assertEquals(80_000, snapshot.calls);
+        assertEquals(80_000, snapshot.latency.count);
+    }
+
+    private static SoapCallEvent event(Optional<SoapFault> fault, boolean timedOut, long totalNanos) {
+        return new SoapCallEvent(endpoint, action, fault, 200, timedOut, 100, 100, 0, -1, 0, 0, totalNanos);
+    }
+}
@@ -0,0 +1,50 @@
+package no.storebrand.shampoo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class SoapParserTest {
+
+    @Test
+    public void rejectsDoctype() {
+        String xxe = "<?xml version=\"1.0\"?>\n" +
+                "<!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>\n" +
+                "<env:Envelope xmlns:env=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+                "<env:Body><Echo>&xxe;</Echo></env:Body></env:Envelope>";
+        Result<SoapFault, SoapDocument> result = SoapDocument.fromString(xxe);
+        assertTrue(result.isFailure());
+        assertEquals("parse", result.swap().toOptional().get().code);
+    }
+
+    @Test
+    public void reusableAfterFailure() {
+        SoapParser parser = SoapParser.of(SoapParser::secureBuilder, 1);
+        assertTrue(SoapDocument.fromString("<not-xml", parser).isFailure());
+        assertTrue(SoapDocument.fromStream(getClass().getResourceAsStream("/soap/soap11success.xml"), parser).isSuccess());
+        assertTrue(SoapDocument.fromStream(getClass().getResourceAsStream("/soap/soap12success.xml"), parser).isSuccess());
+    }
+
+    @Test
+    public void concurrentParsing() throws Exception {
+        SoapParser parser = SoapParser.of(SoapParser::secureBuilder, 2);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Result<SoapFault, SoapDocument>>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(executor.submit(() -> SoapDocument.fromStream(getClass().getResourceAsStream("/soap/soap11success.xml"), parser)));
+            }
+            for (Future<Result<SoapFault, SoapDocument>> future : futures) {
+                assertTrue(future.get().isSuccess());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package no.storebrand.shampoo;
+
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class SoapStreamReaderTest {
+    private final Namespace records = Namespace.getNamespace("http://example.org/records");
+
+    @Test
+    public void iteratesPayloadChildren() {
+        Result<SoapFault, List<String>> result = SoapStreamReader.read(getClass().getResourceAsStream("/soap/soap11records.xml"), reader -> {
+            assertEquals(SoapDocument.SOAP_11, reader.ns);
+            assertEquals(1, reader.header.size());
+            assertEquals("Records", reader.payload.getName());
+            assertEquals("3", reader.payload.getAttributeValue("count"));
+            return reader.stream(e -> JDOM2Utils.getText(e)).collect(Collectors.toList());
+        });
+        assertEquals(Result.success(Arrays.asList("One", "Two", "Three")), result);
+    }
+
+    @Test
+    public void childrenKeepNamespacesInScope() {
+        Result<SoapFault, Element> first = SoapStreamReader.read(getClass().getResourceAsStream("/soap/soap11records.xml"), reader ->
+                reader.iterator().next()
+        );
+        Element record = first.toOptional().get();
+        assertEquals(records, record.getNamespace());
+        assertEquals("http://www.w3.org/2001/XMLSchema-instance", record.getNamespace("xsi").getURI());
+        assertNull(record.getParent());
+    }
+
+    @Test
+    public void compactEnvelope() {
+        SoapDocument document = SoapDocument.soap11(
+                Collections.singletonList(new SoapHeader(JDOM2Utils.elem("Routing", "backend-1"))),
+                new SoapBody(JDOM2Utils.elem("Records", records, JDOM2Utils.elem("Record", records, "One"), JDOM2Utils.elem("Record", records, "Two")))
+        );
+        byte[] bytes = document.toCompactString().getBytes(StandardCharsets.UTF_8);
+        Result<SoapFault, List<String>> result = SoapStreamReader.read(new ByteArrayInputStream(bytes), reader ->
+                reader.stream(JDOM2Utils::getText).collect(Collectors.toList())
+        );
+        assertEquals(Result.success(Arrays.asList("One", "Two")), result);
+    }
+
+    @Test
+    public void detectsFault() {
+        Result<SoapFault, SoapStreamReader> result = SoapStreamReader.open(getClass().getResourceAsStream("/soap/soap11fault.xml"));
+        assertTrue(result.isFailure());
+        SoapFault fault = result.swap().toOptional().get();
+        assertEquals("env:Server", fault.code);
+        assertEquals("Backend unavailable", fault.message);
+        assertEquals(SoapDocument.fromStream(getClass().getResourceAsStream("/soap/soap11fault.xml")), Result.failure(fault));
+    }
+
+    @Test
+    public void rejectsOtherDocuments() {
+        byte[] page = "<html><body><p>Service Unavailable</p></body></html>".getBytes(StandardCharsets.UTF_8);
+        assertEquals(Result.failure(SoapFault.parse("Not a SOAP envelope: html")), SoapStreamReader.open(new ByteArrayInputStream(page)));
+        byte[] other = "<env:Message xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\"><env:Body/></env:Message>".getBytes(StandardCharsets.UTF_8);
+        assertEquals(Result.failure(SoapFault.parse("Not a SOAP envelope: env:Message")), SoapStreamReader.open(new ByteArrayInputStream(other)));
+    }
+
+    @Test
+    public void drainsAfterFault() {
+        StringBuilder envelope = new StringBuilder("<env:Envelope xmlns:env=\"http://schemas.xmlsoap.org/soap/envelope/\"><env:Body>")
+                .append("<env:Fault><faultcode>env:Server</faultcode><faultstring>Overloaded</faultstring></env:Fault>");
+        for (int i = 0; i < 1_000; i++) {
+            envelope.append("<Trailing>").append(i).append("</Trailing>");
+        }
+        envelope.append("</env:Body></env:Envelope>");
+        ByteArrayInputStream input = new ByteArrayInputStream(envelope.toString().getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(SoapStreamReader.open(input).isFailure());
+        assertEquals(0, input.available());
+    }
+
+    @Test
+    public void soap12Fault() {
+        Result<SoapFault, SoapStreamReader> result = SoapStreamReader.open(getClass().getResourceAsStream("/soap/soap12fault.xml"));
+        assertEquals("env:Receiver", result.swap().toOptional().get().code);
+    }
+
+    @Test
+    public void textPayloadHasNoChildren() {
+        Result<SoapFault, Long> count = SoapStreamReader.read(getClass().getResourceAsStream("/soap/soap12success.xml"), reader -> reader.elements().count());
+        assertEquals(Result.success(0L), count);
+    }
+
+    @Test
+    public void truncatedInputIsParseFault() {
+        String truncated = "<env:Envelope xmlns:env=\"http://schemas.xmlsoap.org/soap/envelope/\"><env:Body><Records><Record>1</Record><Rec";
+        Result<SoapFault, Long> count = SoapStreamReader.read(new ByteArrayInputStream(truncated.getBytes(StandardCharsets.UTF_8)), reader -> reader.elements().count());
+        assertEquals(Optional.of("parse"), count.swap().toOptional().map(f -> f.code));
+    }
+}
@@ -0,0 +1,57 @@
+package no.storebrand.shampoo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static no.storebrand.shampoo.JDOM2Utils.elem;
+import static org.junit.Assert.*;
+
+public class WireCaptureTest {
+    @Test
+    public void capturesWholeMessageBelowLimit() throws Exception {
+        SoapDocument doc = SoapDocument.soap11(Collections.emptyList(), new SoapBody(elem("Echo", "Hello")));
+        WireCapture capture = WireCapture.bounded(1024);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        doc.write(capture.tee(output));
+
+        assertFalse(capture.isTruncated());
+        assertEquals(output.toString("UTF-8"), capture.toString());
+    }
+
+    @Test
+    public void truncatesWhileParserReadsEverything() throws Exception {
+        StringBuilder records = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            records.append("<record>").append(i).append("</record>");
+        }
+        byte[] envelope = ("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body><records>" +
+                records + "</records></soap:Body></soap:Envelope>").getBytes(StandardCharsets.UTF_8);
+        WireCapture capture = WireCapture.bounded(64);
+
+        Result<SoapFault, SoapDocument> result = SoapDocument.fromStream(capture.tee(new ByteArrayInputStream(envelope)));
+
+        assertTrue(result.isSuccess());
+        assertTrue(capture.isTruncated());
+        assertEquals(envelope.length, capture.total());
+        assertEquals(new String(envelope, 0, 64, StandardCharsets.UTF_8) + "... [truncated, " + envelope.length + " bytes]", capture.toString());
+    }
+
+    @Test
+    public void singleBytes() throws Exception {
+        WireCapture capture = WireCapture.bounded(2);
+        InputStream input = capture.tee(new ByteArrayInputStream(new byte[]{'a', 'b', 'c'}));
+        while (input.read() != -1) {
+        }
+        OutputStream output = WireCapture.bounded(0).tee(new ByteArrayOutputStream());
+        output.write('x');
+
+        assertEquals("ab... [truncated, 3 bytes]", capture.toString());
+    }
+}
@@ -0,0 +1,20 @@
+package no.storebrand.shampoo.benchmarks;
+
+import java.io.OutputStream;
+
+/**
+ * Discards everything written, so serialization is measured without the cost of a growing buffer.
+ */
+final class CountingOutputStream extends OutputStream {
+    long count;
+
+    @Override
+    public void write(int b) {
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        count += len;
+    }
+}
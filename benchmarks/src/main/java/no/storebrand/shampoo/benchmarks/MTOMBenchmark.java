@@ -0,0 +1,84 @@
+package no.storebrand.shampoo.benchmarks;
+
+import no.storebrand.shampoo.Result;
+import no.storebrand.shampoo.SoapFault;
+import no.storebrand.shampoo.okhttp3.AttachmentStorage;
+import no.storebrand.shampoo.okhttp3.MTOM;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.Sink;
+import okio.Timeout;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses MTOM responses with attachments streamed to a discarding sink, so the measurement is dominated
+ * by the multipart boundary search. Use {@code -prof gc} to see the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class MTOMBenchmark {
+    @Param({"1024", "1048576", "104857600"})
+    public int partSize;
+
+    @Param({"1", "8"})
+    public int parts;
+
+    private String contentType;
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] data = new byte[partSize];
+        new Random(42).nextBytes(data);
+        MultipartBody.Builder builder = new MultipartBody.Builder()
+                .setType(MediaType.parse("multipart/related; type=\"application/xop+xml\""))
+                .addPart(Headers.of("Content-ID", "<root>"), RequestBody.create(
+                        MediaType.parse("application/xop+xml; charset=utf-8; type=\"text/xml\""),
+                        Payloads.envelope(Payloads.namespace("soap11"), 1)));
+        for (int i = 0; i < parts; i++) {
+            builder.addPart(Headers.of("Content-ID", "<part" + i + ">"), RequestBody.create(MediaType.parse("application/octet-stream"), data));
+        }
+        MultipartBody body = builder.build();
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        contentType = body.contentType().toString();
+        payload = buffer.readByteArray();
+    }
+
+    @Benchmark
+    public Result<SoapFault, MTOM> parse() throws IOException {
+        return MTOM.fromInputStream(contentType, new ByteArrayInputStream(payload), AttachmentStorage.streamTo(id -> new DiscardingSink()));
+    }
+
+    private static final class DiscardingSink implements Sink {
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            source.skip(byteCount);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
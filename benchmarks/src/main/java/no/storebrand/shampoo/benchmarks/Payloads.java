@@ -0,0 +1,105 @@
+package no.storebrand.shampoo.benchmarks;
+
+import no.storebrand.shampoo.SoapDocument;
+import no.storebrand.shampoo.SoapHeader;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static no.storebrand.shampoo.JDOM2Utils.elem;
+
+/**
+ * Generated envelopes of known size, so that results are comparable between runs.
+ */
+final class Payloads {
+    static final Namespace RECORDS = Namespace.getNamespace("r", "http://example.org/records");
+
+    private Payloads() {
+    }
+
+    /**
+     * small is a single record, medium about 100 KB and huge about 10 MB.
+     */
+    static int records(String size) {
+        switch (size) {
+            case "small":
+                return 1;
+            case "medium":
+                return 1_000;
+            case "huge":
+                return 100_000;
+            default:
+                throw new IllegalArgumentException("Unknown size " + size);
+        }
+    }
+
+    static Namespace namespace(String version) {
+        switch (version) {
+            case "soap11":
+                return SoapDocument.SOAP_11;
+            case "soap12":
+                return SoapDocument.SOAP_12;
+            default:
+                throw new IllegalArgumentException("Unknown version " + version);
+        }
+    }
+
+    static byte[] envelope(Namespace ns, int records) {
+        StringBuilder sb = new StringBuilder(records * 100 + 512);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<soap:Envelope xmlns:soap=\"").append(ns.getURI()).append("\">")
+                .append("<soap:Header><h:Trace xmlns:h=\"http://example.org/trace\">benchmark</h:Trace></soap:Header>")
+                .append("<soap:Body><r:Records xmlns:r=\"").append(RECORDS.getURI()).append("\" count=\"").append(records).append("\">");
+        for (int i = 0; i < records; i++) {
+            sb.append("<r:Record id=\"").append(i).append("\"><r:Name>Name ").append(i)
+                    .append("</r:Name><r:Amount>").append(i * 31 % 10_000).append(".50</r:Amount></r:Record>");
+        }
+        sb.append("</r:Records></soap:Body></soap:Envelope>");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A WS-Security header with a 4 KB binary token, and a few routing headers.
+     */
+    static List<SoapHeader> staticHeader() {
+        Namespace wsse = Namespace.getNamespace("wsse", "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd");
+        Namespace wsa = Namespace.getNamespace("wsa", "http://www.w3.org/2005/08/addressing");
+        byte[] token = new byte[4096];
+        new Random(42).nextBytes(token);
+        Element security = elem("Security", wsse, elem("BinarySecurityToken", wsse, Base64.getEncoder().encodeToString(token)));
+        return Arrays.asList(
+                new SoapHeader(security),
+                new SoapHeader(elem("To", wsa, "http://example.org/records")),
+                new SoapHeader(elem("From", wsa, elem("Address", wsa, "http://example.org/benchmark"))),
+                new SoapHeader(elem("ReplyTo", wsa, elem("Address", wsa, "http://www.w3.org/2005/08/addressing/anonymous")))
+        );
+    }
+
+    /**
+     * A fault followed by {@code records} diagnostic records, as sent by a misbehaving backend.
+     */
+    static byte[] fault(Namespace ns, int records) {
+        String fault;
+        if (ns.equals(SoapDocument.SOAP_11)) {
+            fault = "<soap:Fault><faultcode>soap:Server</faultcode><faultstring>Something failed</faultstring>" +
+                    "<detail><e:Error xmlns:e=\"http://example.org/error\">details</e:Error></detail></soap:Fault>";
+        } else {
+            fault = "<soap:Fault><soap:Code><soap:Value>soap:Receiver</soap:Value></soap:Code>" +
+                    "<soap:Reason><soap:Text xml:lang=\"en\">Something failed</soap:Text></soap:Reason>" +
+                    "<soap:Detail><e:Error xmlns:e=\"http://example.org/error\">details</e:Error></soap:Detail></soap:Fault>";
+        }
+        StringBuilder sb = new StringBuilder(records * 100 + 512);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><soap:Envelope xmlns:soap=\"").append(ns.getURI()).append("\"><soap:Body>")
+                .append(fault);
+        for (int i = 0; i < records - 1; i++) {
+            sb.append("<r:Record xmlns:r=\"").append(RECORDS.getURI()).append("\" id=\"").append(i).append("\">diagnostics</r:Record>");
+        }
+        sb.append("</soap:Body></soap:Envelope>");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
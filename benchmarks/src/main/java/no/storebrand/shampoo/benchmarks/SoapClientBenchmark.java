@@ -0,0 +1,102 @@
+package no.storebrand.shampoo.benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+import no.storebrand.shampoo.*;
+import no.storebrand.shampoo.jdk.UrlConnectionSoapClient;
+import no.storebrand.shampoo.jdk11.HttpClientSoapClient;
+import no.storebrand.shampoo.okhttp3.OkHttp3SoapClient;
+import okhttp3.OkHttpClient;
+import org.jdom2.Element;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end calls against an in-process server, which answers every request with the same envelope.
+ * The server disables Nagle's algorithm, so that its delayed responses do not hide the cost of the clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Dsun.net.httpserver.nodelay=true"})
+public class SoapClientBenchmark {
+    @Param({"okhttp3", "jdk", "jdk11"})
+    public String client;
+
+    @Param({"small", "medium"})
+    public String size;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private OkHttpClient okHttpClient;
+    private SoapClient soapClient;
+    private SoapRequest request;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] response = Payloads.envelope(SoapDocument.SOAP_11, Payloads.records(size));
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            try (InputStream is = exchange.getRequestBody()) {
+                is.transferTo(OutputStream.nullOutputStream());
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
+        });
+        server.start();
+
+        URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/");
+        switch (client) {
+            case "okhttp3":
+                okHttpClient = new OkHttpClient();
+                soapClient = new OkHttp3SoapClient(okHttpClient, uri);
+                break;
+            case "jdk":
+                soapClient = new UrlConnectionSoapClient(uri);
+                break;
+            case "jdk11":
+                soapClient = new HttpClientSoapClient(uri);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown client " + client);
+        }
+        Element payload = new Element("Lookup", Payloads.RECORDS).addContent(new Element("Id", Payloads.RECORDS).setText("42"));
+        request = SoapRequest.soap11(new SoapBody(payload), Collections.emptyList(), SoapAction.of("http://example.org/records/lookup"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdown();
+        if (okHttpClient != null) {
+            okHttpClient.dispatcher().executorService().shutdown();
+            okHttpClient.connectionPool().evictAll();
+        }
+    }
+
+    @Benchmark
+    public Result<SoapFault, SoapDocument> execute() {
+        return soapClient.execute(request);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Result<SoapFault, SoapDocument> executeConcurrently() {
+        return soapClient.execute(request);
+    }
+}
@@ -0,0 +1,89 @@
+package no.storebrand.shampoo.benchmarks;
+
+import no.storebrand.shampoo.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SoapDocumentBenchmark {
+    @Param({"small", "medium", "huge"})
+    public String size;
+
+    @Param({"soap11", "soap12"})
+    public String version;
+
+    private byte[] envelope;
+    private byte[] fault;
+    private SoapDocument document;
+    private SoapDocument withHeader;
+    private SoapDocument templated;
+
+    @Setup
+    public void setup() {
+        envelope = Payloads.envelope(Payloads.namespace(version), Payloads.records(size));
+        fault = Payloads.fault(Payloads.namespace(version), Payloads.records(size));
+        document = SoapDocument.fromStream(new ByteArrayInputStream(envelope)).fold(f -> {
+            throw new IllegalStateException(f.message);
+        }, d -> d);
+        List<SoapHeader> header = Payloads.staticHeader();
+        EnvelopeTemplate template;
+        if (document.ns.equals(SoapDocument.SOAP_11)) {
+            withHeader = SoapDocument.soap11(header, document.body);
+            template = EnvelopeTemplate.soap11(header);
+        } else {
+            withHeader = SoapDocument.soap12(header, document.body);
+            template = EnvelopeTemplate.soap12(header);
+        }
+        templated = template.document(document.body);
+    }
+
+    @Benchmark
+    public Result<SoapFault, SoapDocument> parse() {
+        return SoapDocument.fromStream(new ByteArrayInputStream(envelope));
+    }
+
+    @Benchmark
+    public Result<SoapFault, SoapDocument> parseFault() {
+        return SoapDocument.fromStream(new ByteArrayInputStream(fault));
+    }
+
+    @Benchmark
+    public SoapFault readFault() {
+        return SoapDocument.readFault(new ByteArrayInputStream(fault));
+    }
+
+    @Benchmark
+    public Result<SoapFault, Long> stream() {
+        return SoapStreamReader.read(new ByteArrayInputStream(envelope), reader -> reader.elements().count());
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        CountingOutputStream output = new CountingOutputStream();
+        document.write(output);
+        return output.count;
+    }
+
+    @Benchmark
+    public long writeWithStaticHeader() throws IOException {
+        CountingOutputStream output = new CountingOutputStream();
+        withHeader.write(output);
+        return output.count;
+    }
+
+    @Benchmark
+    public long writeTemplate() throws IOException {
+        CountingOutputStream output = new CountingOutputStream();
+        templated.write(output);
+        return output.count;
+    }
+}
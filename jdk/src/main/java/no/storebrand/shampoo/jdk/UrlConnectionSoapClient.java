@@ -4,65 +4,263 @@ import no.storebrand.shampoo.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.*;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * A {@link SoapClient} on top of {@link HttpURLConnection}.
+ *
+ * Before Java 21, {@link HttpURLConnection} holds monitors while it blocks on the network, which pins virtual
+ * threads to their carrier threads. On virtual threads, use {@code HttpClientSoapClient} from shampoo-jdk11 instead.
+ */
 public class UrlConnectionSoapClient implements SoapClient {
+    /**
+     * Envelopes up to this size are sent with a Content-Length, larger ones are streamed chunked.
+     */
+    static final int BUFFER_LIMIT = 64 * 1024;
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
-    private URL url;
+    private final URI uri;
+    private final URL url;
+    private final SoapClientListener listener;
+    private final RequestCompression compression;
+    private final Optional<Executor> executor;
 
     public UrlConnectionSoapClient(URI url) {
+        this(url, SoapClientListener.NONE, RequestCompression.NONE, Optional.empty());
+    }
+
+    private UrlConnectionSoapClient(URI uri, SoapClientListener listener, RequestCompression compression, Optional<Executor> executor) {
         try {
-            this.url = url.toURL();
+            this.uri = uri;
+            this.url = uri.toURL();
+            this.listener = listener;
+            this.compression = compression;
+            this.executor = executor;
         } catch (MalformedURLException e) {
             throw new IllegalStateException("Not a valid URL", e);
         }
     }
 
+    public UrlConnectionSoapClient withListener(SoapClientListener listener) {
+        return new UrlConnectionSoapClient(uri, listener, compression, executor);
+    }
+
+    /**
+     * Responses are always requested with gzip, and decompressed while they are parsed.
+     */
+    public UrlConnectionSoapClient withCompression(RequestCompression compression) {
+        return new UrlConnectionSoapClient(uri, listener, compression, executor);
+    }
+
+    /**
+     * Runs {@link #executeAsync(SoapRequest)}, and so the calls of {@link #executeAll(java.util.List, int)}, on
+     * {@code executor}, which needs a thread for each call in flight.
+     * Kept-alive connections are pooled by {@link HttpURLConnection}, up to the {@code http.maxConnections}
+     * system property per destination, which is 5 by default.
+     */
+    public UrlConnectionSoapClient withExecutor(Executor executor) {
+        return new UrlConnectionSoapClient(uri, listener, compression, Optional.of(executor));
+    }
+
     @Override
     public Result<SoapFault, SoapDocument> execute(SoapRequest req) {
+        return request(req, SoapDocument::fromStream, conn -> {});
+    }
+
+    @Override
+    public CompletionStage<Result<SoapFault, SoapDocument>> executeAsync(SoapRequest req) {
+        if (executor.isPresent()) {
+            CompletableFuture<Result<SoapFault, SoapDocument>> future = new CompletableFuture<>();
+            // cancelling the stage, such as a hedge which lost, disconnects a call in progress
+            executor.get().execute(() -> {
+                if (!future.isDone()) {
+                    future.complete(request(req, SoapDocument::fromStream, conn -> future.whenComplete((result, e) -> {
+                        if (future.isCancelled()) {
+                            conn.disconnect();
+                        }
+                    })));
+                }
+            });
+            return future;
+        }
+        return CompletableFuture.completedFuture(execute(req));
+    }
+
+    /**
+     * Decodes the response with a {@link SoapStreamReader}, which is handed to {@code f} while the response is open.
+     */
+    public <A> Result<SoapFault, A> executeStreaming(SoapRequest req, Function<SoapStreamReader, A> f) {
+        return request(req, is -> SoapStreamReader.read(is, f), conn -> {});
+    }
+
+    private <A> Result<SoapFault, A> request(SoapRequest req, Function<InputStream, Result<SoapFault, A>> fromStream, Consumer<HttpURLConnection> opened) {
         if (logger.isInfoEnabled()) {
             logger.info("SOAP request to {} ", url);
             logger.info("Action is '{}'", req.action.action);
         }
-        if (logger.isDebugEnabled()) {
-            logger.debug("request is:\n{}", req.soapDocument);
-        }
+        WireCapture requestCapture = logger.isDebugEnabled() ? WireCapture.create() : null;
 
+        SoapCallRecorder recorder = SoapCallRecorder.start(listener, uri, req.action);
+        HttpURLConnection conn;
         try {
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setDoOutput(true);
-            req.headers.forEach(conn::setRequestProperty);
-            conn.setRequestProperty("SOAPAction", req.action.format());
-            conn.setRequestProperty("Content-Type", toMediaType(req.soapDocument));
-            req.soapDocument.write(conn.getOutputStream());
-            conn.connect();
-
-            try(InputStream is = getInputStream(conn)) {
-                if (is != null) {
-                    return SoapDocument.fromStream(is);
-                } else {
-                    return Result.failure(SoapFault.client("No inputstream found in client"));
+            conn = (HttpURLConnection) url.openConnection();
+        } catch (IOException e) {
+            return recorder.finish(failure(recorder, e));
+        }
+        opened.accept(conn);
+        // disconnecting from the timer thread aborts a call blocked on the connection
+        try (DeadlineTimer timer = DeadlineTimer.start(req, conn::disconnect)) {
+            if (timer.isExpired()) {
+                recorder.timedOut();
+                return recorder.finish(Result.failure(DeadlineTimer.fault(null)));
+            }
+            req.remaining().ifPresent(remaining -> {
+                int millis = (int) Math.max(1, Math.min(Integer.MAX_VALUE, remaining.toMillis()));
+                conn.setConnectTimeout(millis);
+                conn.setReadTimeout(millis);
+            });
+            try {
+                return recorder.finish(timer.check(recorder, send(conn, req, recorder, requestCapture, fromStream)));
+            } catch (IOException e) {
+                return recorder.finish(timer.check(recorder, failure(recorder, e)));
+            }
+        }
+    }
+
+    private <A> Result<SoapFault, A> send(HttpURLConnection conn, SoapRequest req, SoapCallRecorder recorder, WireCapture requestCapture, Function<InputStream, Result<SoapFault, A>> fromStream) throws IOException {
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        // stream large envelopes instead of letting HttpURLConnection buffer the whole body to compute Content-Length,
+        // but send small ones in one write, as Nagle's algorithm can delay a chunked body split over several writes
+        BodyWriter body;
+        long size;
+        if (req.encoded.isPresent()) {
+            body = req.encoded.get()::writeTo;
+            size = req.encoded.get().size();
+        } else {
+            ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+            if (req.soapDocument.writeUpTo(buffered, BUFFER_LIMIT)) {
+                body = buffered::writeTo;
+                size = buffered.size();
+            } else {
+                body = req.soapDocument::write;
+                size = -1;
+            }
+        }
+        if (requestCapture != null) {
+            BodyWriter plain = body;
+            body = os -> plain.writeTo(requestCapture.tee(os));
+        }
+        boolean gzip = compression.compress(size);
+        if (gzip && size != -1) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream os = new GZIPOutputStream(compressed)) {
+                body.writeTo(os);
+            }
+            body = compressed::writeTo;
+            size = compressed.size();
+        } else if (gzip) {
+            BodyWriter plain = body;
+            body = os -> {
+                // finished rather than closed, since the connection closes its stream, so the deflater is ended here
+                StreamingGzip compressing = new StreamingGzip(os);
+                try {
+                    plain.writeTo(compressing);
+                    compressing.finish();
+                } finally {
+                    compressing.end();
                 }
+            };
+        }
+        if (size != -1) {
+            recorder.serialized(size);
+            conn.setFixedLengthStreamingMode(size);
+        } else {
+            conn.setChunkedStreamingMode(0);
+        }
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        req.headers.forEach(conn::setRequestProperty);
+        conn.setRequestProperty("SOAPAction", req.encoded.map(e -> e.soapAction).orElseGet(req.action::format));
+        conn.setRequestProperty("Content-Type", req.encoded.map(e -> e.contentType).orElseGet(() -> toMediaType(req.soapDocument)));
+        if (gzip) {
+            conn.setRequestProperty("Content-Encoding", "gzip");
+        }
+        conn.connect();
+        recorder.connected();
+        try (OutputStream os = conn.getOutputStream()) {
+            if (size != -1) {
+                body.writeTo(os);
+            } else {
+                body.writeTo(recorder.request(os));
+                recorder.serialized(-1);
             }
-        } catch (IOException e) {
-            if (logger.isWarnEnabled()) {
-                logger.warn("exception in soap request", e);
+        }
+        if (requestCapture != null) {
+            logger.debug("request is:\n{}", requestCapture);
+        }
+        recorder.firstByte(conn.getResponseCode());
+
+        // an error response is read only as far as its Fault, without building the whole document
+        int statusCode = conn.getResponseCode();
+        Function<InputStream, Result<SoapFault, A>> fromResponse = statusCode >= 400
+                ? is -> Result.failure(SoapDocument.readFault(is, statusCode))
+                : fromStream;
+        try(InputStream is = getInputStream(conn)) {
+            if (is != null && logger.isDebugEnabled()) {
+                WireCapture capture = WireCapture.create();
+                Result<SoapFault, A> result = fromResponse.apply(capture.tee(decode(conn, recorder.response(is))));
+                logger.debug("response data is:\n{}", capture);
+                return result;
+            } else if (is != null) {
+                return fromResponse.apply(decode(conn, recorder.response(is)));
+            } else if (statusCode >= 400) {
+                return Result.failure(SoapFault.httpStatus(statusCode));
+            } else {
+                return Result.failure(SoapFault.client("No inputstream found in client"));
             }
-            return Result.failure(SoapFault.client(e.getMessage()));
         }
     }
 
+    private <A> Result<SoapFault, A> failure(SoapCallRecorder recorder, IOException e) {
+        if (e instanceof SocketTimeoutException) {
+            recorder.timedOut();
+        }
+        if (logger.isWarnEnabled()) {
+            logger.warn("exception in soap request", e);
+        }
+        return Result.failure(SoapFault.fromThrowable("soap:Client", e));
+    }
+
     private InputStream getInputStream(HttpURLConnection conn) throws IOException {
-        if (conn.getResponseCode() >= 200 || conn.getResponseCode() < 300) {
+        if (conn.getResponseCode() >= 200 && conn.getResponseCode() < 300) {
             return conn.getInputStream();
         } else {
             return conn.getErrorStream();
         }
     }
 
+    /**
+     * Decompresses a gzip response as it is read. The response bytes of the call events are counted before decompressing.
+     */
+    private static InputStream decode(HttpURLConnection conn, InputStream is) throws IOException {
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+            return new GZIPInputStream(is, 8192);
+        }
+        return is;
+    }
+
     private String toMediaType(SoapDocument doc) {
         if (doc.ns.equals(SoapDocument.SOAP_12)) {
             return "application/soap+xml";
@@ -70,4 +268,20 @@ public class UrlConnectionSoapClient implements SoapClient {
         return "text/xml; charset=utf-8";
     }
 
+    private interface BodyWriter {
+        void writeTo(OutputStream stream) throws IOException;
+    }
+
+    private static final class StreamingGzip extends GZIPOutputStream {
+        StreamingGzip(OutputStream out) throws IOException {
+            super(out, 8192);
+        }
+
+        /**
+         * Releases the native memory of the deflater, which {@link #finish()} keeps until the stream is closed.
+         */
+        void end() {
+            def.end();
+        }
+    }
 }
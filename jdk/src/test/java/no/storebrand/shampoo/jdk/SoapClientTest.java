@@ -10,13 +10,20 @@ import java.net.ServerSocket;
 import java.net.URI;
 import java.util.Collections;
 import java.util.Optional;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import static no.storebrand.shampoo.JDOM2Utils.elem;
 import static org.junit.Assert.*;
 
-public class SoapClientTest {
+public class SoapClientTest extends SoapClientContract {
+
+    @Override
+    protected SoapClient client(URI uri, RequestCompression compression, Executor executor) {
+        return new UrlConnectionSoapClient(uri).withCompression(compression).withExecutor(executor);
+    }
+
 
     public static int randomPort() {
         try {
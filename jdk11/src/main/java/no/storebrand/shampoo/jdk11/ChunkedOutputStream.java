@@ -0,0 +1,71 @@
+package no.storebrand.shampoo.jdk11;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects written bytes in fixed size chunks, so that a serialized envelope can be handed to
+ * {@link java.net.http.HttpRequest.BodyPublishers#ofByteArrays(Iterable)} without ever being copied
+ * into one contiguous array or String.
+ */
+final class ChunkedOutputStream extends OutputStream {
+    static final int CHUNK_SIZE = 8192;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private byte[] current = new byte[CHUNK_SIZE];
+    private int position = 0;
+    private long size = 0;
+
+    @Override
+    public void write(int b) {
+        if (position == current.length) {
+            nextChunk();
+        }
+        current[position++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (position == current.length) {
+                nextChunk();
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(b, off, current, position, n);
+            position += n;
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    void writeTo(OutputStream stream) throws IOException {
+        for (byte[] chunk : chunks) {
+            stream.write(chunk);
+        }
+        stream.write(current, 0, position);
+    }
+
+    long size() {
+        return size;
+    }
+
+    List<byte[]> chunks() {
+        List<byte[]> result = new ArrayList<>(chunks.size() + 1);
+        result.addAll(chunks);
+        if (position > 0) {
+            result.add(position == current.length ? current : Arrays.copyOf(current, position));
+        }
+        return result;
+    }
+
+    private void nextChunk() {
+        chunks.add(current);
+        current = new byte[CHUNK_SIZE];
+        position = 0;
+    }
+}
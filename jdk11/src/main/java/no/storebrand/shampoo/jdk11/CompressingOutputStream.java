@@ -0,0 +1,64 @@
+package no.storebrand.shampoo.jdk11;
+
+import no.storebrand.shampoo.RequestCompression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Collects a serialized envelope in a {@link ChunkedOutputStream}, and compresses it with gzip from the moment it
+ * reaches the threshold of the {@link RequestCompression}. The bytes written before then are compressed at that point,
+ * so a compressed body is only buffered once, compressed, and at most the threshold is ever held uncompressed.
+ *
+ * Must be closed to write the gzip trailer and release the deflater, also when writing fails.
+ */
+final class CompressingOutputStream extends OutputStream {
+    private final RequestCompression compression;
+    private ChunkedOutputStream output = new ChunkedOutputStream();
+    private GZIPOutputStream gzip;
+    private long written = 0;
+
+    CompressingOutputStream(RequestCompression compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (gzip == null && compression.compress(written + len)) {
+            ChunkedOutputStream compressed = new ChunkedOutputStream();
+            gzip = new GZIPOutputStream(compressed, ChunkedOutputStream.CHUNK_SIZE);
+            output.writeTo(gzip);
+            output = compressed;
+        }
+        if (gzip != null) {
+            gzip.write(b, off, len);
+        } else {
+            output.write(b, off, len);
+        }
+        written += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (gzip != null) {
+            gzip.close();
+        }
+    }
+
+    boolean isCompressed() {
+        return gzip != null;
+    }
+
+    /**
+     * The body to send, which is only complete once the stream is closed.
+     */
+    ChunkedOutputStream output() {
+        return output;
+    }
+}
@@ -0,0 +1,344 @@
+package no.storebrand.shampoo.jdk11;
+
+import no.storebrand.shampoo.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A {@link SoapClient} on top of {@link java.net.http.HttpClient}.
+ *
+ * Share one {@link HttpClient} between all clients talking to the same hosts, so that connections
+ * are pooled and, for servers that support it, multiplexed over HTTP/2.
+ * {@link #HttpClientSoapClient(URI)} uses a shared client preferring HTTP/2, with {@link #DEFAULT_CONNECT_TIMEOUT}
+ * and {@link #DEFAULT_REQUEST_TIMEOUT}.
+ *
+ * The connection pool of {@link HttpClient} is tuned with system properties, which must be set
+ * before the first client is created:
+ * <ul>
+ *     <li>{@code jdk.httpclient.connectionPoolSize}: max pooled HTTP/1.1 connections, 0 means unbounded</li>
+ *     <li>{@code jdk.httpclient.keepalive.timeout}: seconds an idle pooled connection is kept</li>
+ * </ul>
+ *
+ * {@link #execute(SoapRequest)} waits for the response without holding a monitor, and the response is parsed with
+ * the lock-free {@link SoapParser} pool, so the client may be called from any number of virtual threads without
+ * pinning their carrier threads.
+ *
+ * {@link #executeAsync(SoapRequest)} completes at the deadline of the request, or when the returned stage is cancelled,
+ * by cancelling the future of {@link HttpClient#sendAsync}. From Java 16 that also aborts the exchange. On Java 11 to 15
+ * it does not, and the exchange keeps its connection until the response has been read, bounded only by the request
+ * timeout, which is shortened to the deadline but does not cover reading the body.
+ */
+public final class HttpClientSoapClient implements SoapClient {
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final HttpClient client;
+    private final URI uri;
+    private final Optional<Duration> requestTimeout;
+    private final SoapClientListener listener;
+    private final RequestCompression compression;
+
+    public HttpClientSoapClient(URI uri) {
+        this(SharedClient.INSTANCE, uri, Optional.of(DEFAULT_REQUEST_TIMEOUT), SoapClientListener.NONE, RequestCompression.NONE);
+    }
+
+    public HttpClientSoapClient(HttpClient client, URI uri) {
+        this(client, uri, Optional.empty(), SoapClientListener.NONE, RequestCompression.NONE);
+    }
+
+    private HttpClientSoapClient(HttpClient client, URI uri, Optional<Duration> requestTimeout, SoapClientListener listener, RequestCompression compression) {
+        this.client = client;
+        this.uri = uri;
+        this.requestTimeout = requestTimeout;
+        this.listener = listener;
+        this.compression = compression;
+    }
+
+    /**
+     * Creates a client preferring HTTP/2, which falls back to HTTP/1.1 when the server does not support it.
+     *
+     * @param connectTimeout timeout for establishing a connection
+     * @param executor executor for asynchronous and dependent tasks, shared by all requests made by the client
+     */
+    public static HttpClient newHttpClient(Duration connectTimeout, Executor executor) {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(connectTimeout)
+                .executor(executor)
+                .build();
+    }
+
+    /**
+     * The timeout from the request is sent until the response headers are received.
+     */
+    public HttpClientSoapClient withRequestTimeout(Duration timeout) {
+        return new HttpClientSoapClient(client, uri, Optional.of(timeout), listener, compression);
+    }
+
+    public HttpClientSoapClient withListener(SoapClientListener listener) {
+        return new HttpClientSoapClient(client, uri, requestTimeout, listener, compression);
+    }
+
+    /**
+     * Responses are always requested with gzip, and decompressed while they are parsed.
+     *
+     * Request bodies are buffered before they are sent, so that they have a Content-Length. An envelope is compressed
+     * while it is serialized, from the moment it reaches the threshold, so only the compressed bytes are buffered. An
+     * encoded request is compressed the first time it is sent, and the compressed bytes are kept with it.
+     */
+    public HttpClientSoapClient withCompression(RequestCompression compression) {
+        return new HttpClientSoapClient(client, uri, requestTimeout, listener, compression);
+    }
+
+    @Override
+    public Result<SoapFault, SoapDocument> execute(SoapRequest req) {
+        return request(req, SoapDocument::fromStream);
+    }
+
+    /**
+     * Decodes the response with a {@link SoapStreamReader}, which is handed to {@code f} while the response is open.
+     */
+    public <A> Result<SoapFault, A> executeStreaming(SoapRequest req, Function<SoapStreamReader, A> f) {
+        return request(req, is -> SoapStreamReader.read(is, f));
+    }
+
+    private <A> Result<SoapFault, A> request(SoapRequest req, Function<InputStream, Result<SoapFault, A>> fromStream) {
+        SoapCallRecorder recorder = SoapCallRecorder.start(listener, uri, req.action);
+        if (isExpired(req)) {
+            recorder.timedOut();
+            return recorder.finish(Result.failure(DeadlineTimer.fault(null)));
+        }
+        try {
+            HttpRequest request = newRequest(req, recorder);
+            HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            recorder.firstByte(response.statusCode());
+            Function<InputStream, Result<SoapFault, A>> fromResponse = fromResponse(response, fromStream);
+            // the request timeout ends with the response headers, after which closing the body from the timer thread
+            // aborts a parse blocked on reading it. The body is its own resource, so it is closed if decoding fails.
+            try (InputStream body = response.body();
+                 DeadlineTimer timer = DeadlineTimer.start(req, () -> closeQuietly(body));
+                 InputStream is = decode(response, recorder.response(body))) {
+                if (logger.isDebugEnabled()) {
+                    WireCapture capture = WireCapture.create();
+                    Result<SoapFault, A> result = fromResponse.apply(capture.tee(is));
+                    logger.debug("response data is:\n{}", capture);
+                    return recorder.finish(timer.check(recorder, result));
+                }
+                return recorder.finish(timer.check(recorder, fromResponse.apply(is)));
+            }
+        } catch (IOException e) {
+            if (e instanceof HttpTimeoutException) {
+                recorder.timedOut();
+            }
+            return recorder.finish(failure(e));
+        } catch (UncheckedIOException e) {
+            return recorder.finish(failure(e.getCause()));
+        } catch (RuntimeException e) {
+            // such as a header HttpClient restricts, or an invalid header value
+            return recorder.finish(failure(e));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return recorder.finish(failure(e));
+        }
+    }
+
+    @Override
+    public CompletionStage<Result<SoapFault, SoapDocument>> executeAsync(SoapRequest req) {
+        SoapCallRecorder recorder = SoapCallRecorder.start(listener, uri, req.action);
+        if (isExpired(req)) {
+            recorder.timedOut();
+            return CompletableFuture.completedFuture(recorder.finish(Result.failure(DeadlineTimer.fault(null))));
+        }
+        CompletableFuture<HttpResponse<byte[]>> future;
+        try {
+            future = client.sendAsync(newRequest(req, recorder), HttpResponse.BodyHandlers.ofByteArray());
+        } catch (UncheckedIOException e) {
+            return CompletableFuture.completedFuture(recorder.finish(failure(e.getCause())));
+        } catch (RuntimeException e) {
+            return CompletableFuture.completedFuture(recorder.finish(failure(e)));
+        }
+        // cancelling the future completes the call, and from Java 16 also aborts the exchange while the body is read
+        DeadlineTimer timer = DeadlineTimer.start(req, () -> future.cancel(true));
+        // the body is read before the stage completes, so the time to first byte includes reading it
+        CompletableFuture<Result<SoapFault, SoapDocument>> stage = future
+                .thenApply(response -> {
+                    recorder.firstByte(response.statusCode());
+                    Function<InputStream, Result<SoapFault, SoapDocument>> fromResponse = fromResponse(response, SoapDocument::fromStream);
+                    try (InputStream is = decode(response, recorder.response(new ByteArrayInputStream(response.body())))) {
+                        if (logger.isDebugEnabled()) {
+                            WireCapture capture = WireCapture.create();
+                            Result<SoapFault, SoapDocument> result = fromResponse.apply(capture.tee(is));
+                            logger.debug("response data is:\n{}", capture);
+                            return recorder.finish(result);
+                        }
+                        return recorder.finish(fromResponse.apply(is));
+                    } catch (IOException e) {
+                        return recorder.finish(this.<SoapDocument>failure(e));
+                    }
+                })
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (cause instanceof CancellationException) {
+                        // cancelled by the deadline, or with the returned stage, which has then already been recorded
+                        return recorder.finish(timer.check(recorder, Result.failure(SoapFault.fromThrowable("soap:Client", cause))));
+                    }
+                    if (cause instanceof HttpTimeoutException) {
+                        recorder.timedOut();
+                    }
+                    return recorder.finish(timer.check(recorder, failure(cause)));
+                })
+                .whenComplete((result, e) -> timer.close());
+        // cancelling the returned stage, such as a hedge which lost, cancels the future, see the class documentation.
+        // The stages which record the call do not complete the cancelled stage, so the call is recorded here.
+        stage.whenComplete((result, e) -> {
+            if (stage.isCancelled()) {
+                recorder.finish(Result.failure(SoapFault.fromThrowable("soap:Client", new CancellationException("Call cancelled"))));
+                timer.close();
+                future.cancel(true);
+            }
+        });
+        return stage;
+    }
+
+    private HttpRequest newRequest(SoapRequest req, SoapCallRecorder recorder) {
+        if (logger.isInfoEnabled()) {
+            logger.info("SOAP request to {} ", uri);
+            logger.info("Action is '{}'", req.action.action);
+        }
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+        // the deadline shortens the request timeout, which must be positive
+        Optional<Duration> deadline = req.remaining().map(remaining -> remaining.isZero() ? Duration.ofMillis(1) : remaining);
+        Optional<Duration> timeout = deadline.isPresent() && !requestTimeout.filter(t -> t.compareTo(deadline.get()) < 0).isPresent()
+                ? deadline
+                : requestTimeout;
+        timeout.ifPresent(builder::timeout);
+        builder.header("Accept-Encoding", "gzip");
+        req.headers.forEach(builder::setHeader);
+        HttpRequest.BodyPublisher body;
+        boolean gzip;
+        try {
+            if (req.encoded.isPresent()) {
+                EncodedRequest encoded = req.encoded.get();
+                if (logger.isDebugEnabled()) {
+                    WireCapture capture = WireCapture.create();
+                    encoded.writeTo(capture.tee(OutputStream.nullOutputStream()));
+                    logger.debug("request is:\n{}", capture);
+                }
+                gzip = compression.compress(encoded.size());
+                // the compressed envelope is kept by the request, so a request sent again is not compressed again
+                body = gzip
+                        ? HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(encoded::newGzippedInputStream), encoded.gzippedSize())
+                        : HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(encoded::newInputStream), encoded.size());
+            } else {
+                CompressingOutputStream output = serialize(req.soapDocument);
+                gzip = output.isCompressed();
+                body = bodyPublisher(output.output());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (gzip) {
+            builder.setHeader("Content-Encoding", "gzip");
+        }
+        recorder.serialized(body.contentLength());
+        // replaces the same headers from the request, as UrlConnectionSoapClient does, instead of sending them twice
+        return builder
+                .setHeader("SOAPAction", req.encoded.map(e -> e.soapAction).orElseGet(req.action::format))
+                .setHeader("Content-Type", req.encoded.map(e -> e.contentType).orElseGet(() -> toMediaType(req.soapDocument)))
+                .POST(body)
+                .build();
+    }
+
+    private CompressingOutputStream serialize(SoapDocument document) throws IOException {
+        try (CompressingOutputStream output = new CompressingOutputStream(compression)) {
+            if (logger.isDebugEnabled()) {
+                WireCapture capture = WireCapture.create();
+                document.write(capture.tee(output));
+                logger.debug("request is:\n{}", capture);
+            } else {
+                document.write(output);
+            }
+            return output;
+        }
+    }
+
+    private static HttpRequest.BodyPublisher bodyPublisher(ChunkedOutputStream output) {
+        // a known length avoids sending the body chunked, which for small envelopes costs extra writes
+        return HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofByteArrays(output.chunks()), output.size());
+    }
+
+    /**
+     * An error response is read only as far as its Fault, without building the whole document.
+     */
+    private static <A> Function<InputStream, Result<SoapFault, A>> fromResponse(HttpResponse<?> response, Function<InputStream, Result<SoapFault, A>> fromStream) {
+        if (response.statusCode() >= 400) {
+            return is -> Result.failure(SoapDocument.readFault(is, response.statusCode()));
+        }
+        return fromStream;
+    }
+
+    /**
+     * Decompresses a gzip response as it is read. The response bytes of the call events are counted before decompressing.
+     */
+    private static InputStream decode(HttpResponse<?> response, InputStream is) throws IOException {
+        if (response.headers().firstValue("Content-Encoding").filter("gzip"::equalsIgnoreCase).isPresent()) {
+            return new GZIPInputStream(is, ChunkedOutputStream.CHUNK_SIZE);
+        }
+        return is;
+    }
+
+    private static boolean isExpired(SoapRequest req) {
+        return req.remaining().filter(Duration::isZero).isPresent();
+    }
+
+    private static void closeQuietly(InputStream is) {
+        try {
+            is.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private <A> Result<SoapFault, A> failure(Throwable e) {
+        if (logger.isWarnEnabled()) {
+            logger.warn("exception in soap request", e);
+        }
+        return Result.failure(SoapFault.fromThrowable("soap:Client", e));
+    }
+
+    private String toMediaType(SoapDocument doc) {
+        if (doc.ns.equals(SoapDocument.SOAP_12)) {
+            return "application/soap+xml";
+        }
+        return "text/xml; charset=utf-8";
+    }
+
+    private static final class SharedClient {
+        static final HttpClient INSTANCE = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(DEFAULT_CONNECT_TIMEOUT)
+                .build();
+    }
+}
@@ -0,0 +1,58 @@
+package no.storebrand.shampoo.jdk11;
+
+import no.storebrand.shampoo.SoapAction;
+import no.storebrand.shampoo.SoapCallEvent;
+import no.storebrand.shampoo.SoapClientListener;
+
+import java.net.URI;
+
+/**
+ * Emits a Java Flight Recorder event, {@code no.storebrand.shampoo.SoapCall}, for every call.
+ *
+ * Works with any {@link no.storebrand.shampoo.SoapClient} which takes a {@link SoapClientListener}, on Java 11 or later.
+ * The event begins when the call starts and is committed when it completes, so it lines up with GC pauses and other
+ * events during the call. Envelopes are recorded on their own by {@link JfrSoapDocumentListener}.
+ * When the event is disabled in the recording settings, nothing is recorded.
+ */
+public final class JfrSoapClientListener implements SoapClientListener {
+    public static final JfrSoapClientListener INSTANCE = new JfrSoapClientListener();
+
+    private JfrSoapClientListener() {
+    }
+
+    @Override
+    public SoapClientListener onStart(URI endpoint, SoapAction action) {
+        SoapCallJfrEvent event = new SoapCallJfrEvent();
+        if (!event.isEnabled()) {
+            return NONE;
+        }
+        event.begin();
+        return call -> commit(event, call);
+    }
+
+    /**
+     * Commits an event for a call reported without {@link #onStart}, which has no duration.
+     */
+    @Override
+    public void onCall(SoapCallEvent call) {
+        SoapCallJfrEvent event = new SoapCallJfrEvent();
+        if (event.isEnabled()) {
+            commit(event, call);
+        }
+    }
+
+    private static void commit(SoapCallJfrEvent event, SoapCallEvent call) {
+        event.endpoint = call.endpoint.toString();
+        event.action = call.action.action;
+        event.statusCode = call.statusCode;
+        event.faultCode = call.fault.map(f -> f.code).orElse(null);
+        event.requestBytes = call.requestBytes;
+        event.responseBytes = call.responseBytes;
+        event.serialize = call.serializeNanos;
+        event.connect = call.connectNanos;
+        event.timeToFirstByte = call.timeToFirstByteNanos;
+        event.response = call.responseNanos;
+        event.total = call.totalNanos;
+        event.commit();
+    }
+}
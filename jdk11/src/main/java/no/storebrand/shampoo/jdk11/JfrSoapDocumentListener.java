@@ -0,0 +1,37 @@
+package no.storebrand.shampoo.jdk11;
+
+import no.storebrand.shampoo.SoapDocumentListener;
+
+/**
+ * Emits the Java Flight Recorder events {@code no.storebrand.shampoo.Parse} and {@code no.storebrand.shampoo.Serialize}
+ * for every envelope parsed or written. Install it with {@code SoapDocument.setListener(JfrSoapDocumentListener.INSTANCE)}.
+ * When the events are disabled in the recording settings, nothing is recorded and the streams are not wrapped.
+ */
+public final class JfrSoapDocumentListener implements SoapDocumentListener {
+    public static final JfrSoapDocumentListener INSTANCE = new JfrSoapDocumentListener();
+
+    private JfrSoapDocumentListener() {
+    }
+
+    @Override
+    public Operation parsing() {
+        return begin(new SoapDocumentJfrEvent.Parse());
+    }
+
+    @Override
+    public Operation writing() {
+        return begin(new SoapDocumentJfrEvent.Serialize());
+    }
+
+    private static Operation begin(SoapDocumentJfrEvent event) {
+        if (!event.isEnabled()) {
+            return Operation.NONE;
+        }
+        event.begin();
+        return (bytes, fault) -> {
+            event.bytes = bytes;
+            event.faultCode = fault.map(f -> f.code).orElse(null);
+            event.commit();
+        };
+    }
+}
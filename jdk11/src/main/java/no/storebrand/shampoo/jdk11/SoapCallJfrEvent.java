@@ -0,0 +1,52 @@
+package no.storebrand.shampoo.jdk11;
+
+import jdk.jfr.*;
+
+@Name("no.storebrand.shampoo.SoapCall")
+@Label("SOAP Call")
+@Category({"Shampoo", "SOAP"})
+@Description("A SOAP call, from when it starts until it completes")
+@StackTrace(false)
+final class SoapCallJfrEvent extends Event {
+    @Label("Endpoint")
+    String endpoint;
+
+    @Label("Action")
+    String action;
+
+    @Label("Status Code")
+    int statusCode;
+
+    @Label("Fault Code")
+    @Description("The code of the fault the call failed with, or null if it succeeded")
+    String faultCode;
+
+    @Label("Request Size")
+    @DataAmount
+    long requestBytes;
+
+    @Label("Response Size")
+    @DataAmount
+    long responseBytes;
+
+    @Label("Serialize")
+    @Timespan
+    long serialize;
+
+    @Label("Connect")
+    @Timespan
+    long connect;
+
+    @Label("Time to First Byte")
+    @Timespan
+    long timeToFirstByte;
+
+    @Label("Response")
+    @Description("Reading and parsing the response")
+    @Timespan
+    long response;
+
+    @Label("Total")
+    @Timespan
+    long total;
+}
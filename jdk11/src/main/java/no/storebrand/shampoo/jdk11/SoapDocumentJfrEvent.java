@@ -0,0 +1,28 @@
+package no.storebrand.shampoo.jdk11;
+
+import jdk.jfr.*;
+
+@Category({"Shampoo", "SOAP"})
+@StackTrace(false)
+abstract class SoapDocumentJfrEvent extends Event {
+    @Label("Size")
+    @Description("The size of the envelope, or -1 if it was parsed from characters")
+    @DataAmount
+    long bytes;
+
+    @Label("Fault Code")
+    @Description("The code of the fault the document was parsed as, or of the failure, or null")
+    String faultCode;
+
+    @Name("no.storebrand.shampoo.Parse")
+    @Label("SOAP Parse")
+    @Description("Parsing a SOAP envelope")
+    static final class Parse extends SoapDocumentJfrEvent {
+    }
+
+    @Name("no.storebrand.shampoo.Serialize")
+    @Label("SOAP Serialize")
+    @Description("Writing a SOAP envelope")
+    static final class Serialize extends SoapDocumentJfrEvent {
+    }
+}
@@ -0,0 +1,46 @@
+package no.storebrand.shampoo.jdk11;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import no.storebrand.shampoo.*;
+import org.jdom2.Namespace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+
+import static no.storebrand.shampoo.JDOM2Utils.elem;
+
+public class EchoServer {
+    private static final Namespace ns = Namespace.getNamespace("http://echo");
+
+    public static HttpServer createEndpoint(int port, ExecutorService service) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/", EchoServer::echo);
+        server.setExecutor(service);
+        server.start();
+        return server;
+    }
+
+    static void echo(HttpExchange exchange) throws IOException {
+        Result<SoapFault, SoapDocument> request;
+        try (InputStream is = exchange.getRequestBody()) {
+            request = SoapDocument.fromStream(is);
+        }
+        String input = request.toOptional()
+                .flatMap(doc -> doc.transform(e -> JDOM2Utils.getChildText(e, "input", ns)))
+                .orElse("");
+        SoapDocument response = SoapDocument.soap11(
+                Collections.emptyList(),
+                new SoapBody(elem("echoResponse", ns, elem("return", input)))
+        );
+        exchange.getResponseHeaders().add("Content-Type", "text/xml; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream os = exchange.getResponseBody()) {
+            response.write(os);
+        }
+    }
+}
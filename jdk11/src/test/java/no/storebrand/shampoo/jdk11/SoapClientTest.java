@@ -0,0 +1,345 @@
+package no.storebrand.shampoo.jdk11;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+import com.sun.net.httpserver.HttpServer;
+import no.storebrand.shampoo.*;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.jdom2.Namespace;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static no.storebrand.shampoo.JDOM2Utils.elem;
+import static org.junit.Assert.*;
+
+public class SoapClientTest extends SoapClientContract {
+    static {
+        // HttpServer closes connections beyond this many idle ones, which the client may already be reusing.
+        // Read once, when the first server is created.
+        System.setProperty("sun.net.httpserver.maxIdleConnections", "20000");
+    }
+
+    private final Namespace ns = Namespace.getNamespace("http://echo");
+    private final ToElement<String> toEchoRequest = s -> elem("echoRequest", ns, elem("input", ns, s));
+
+    private ExecutorService service;
+    private HttpServer server;
+    private HttpClientSoapClient client;
+
+    @Override
+    protected SoapClient client(URI uri, RequestCompression compression, Executor executor) {
+        return new HttpClientSoapClient(HttpClient.newHttpClient(), uri).withCompression(compression);
+    }
+
+    public static int randomPort() {
+        try {
+            ServerSocket socket = new ServerSocket(0);
+            socket.close();
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to get a random open port");
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        service = Executors.newSingleThreadExecutor();
+        int port = randomPort();
+        server = EchoServer.createEndpoint(port, service);
+        client = new HttpClientSoapClient(HttpClient.newHttpClient(), URI.create(String.format("http://localhost:%s", port)));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        service.shutdown();
+    }
+
+    @Test
+    public void echoService() {
+        assertEcho("Hello", client.execute(echoRequest("Hello")));
+    }
+
+    @Test
+    public void echoServiceAsync() throws Exception {
+        assertEcho("Hello", client.executeAsync(echoRequest("Hello")).toCompletableFuture().get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void echoServiceStreaming() {
+        Result<SoapFault, List<String>> result = client.executeStreaming(echoRequest("Hello"), reader ->
+                reader.stream(JDOM2Utils::getText).collect(Collectors.toList())
+        );
+        assertEquals(Result.success(Collections.singletonList("Hello")), result);
+    }
+
+    @Test
+    public void encodedRequestSentConcurrently() throws Exception {
+        SoapRequest req = echoRequest("Hello").encode();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Result<SoapFault, SoapDocument>>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> client.execute(req)));
+            }
+            for (Future<Result<SoapFault, SoapDocument>> result : results) {
+                assertEcho("Hello", result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void executeAll() {
+        List<String> inputs = Arrays.asList("a", "b", "c", "d", "e");
+        List<Result<SoapFault, SoapDocument>> results = client.executeAll(inputs.stream().map(this::echoRequest).collect(Collectors.toList()), 2);
+        assertEquals(inputs.size(), results.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            assertEcho(inputs.get(i), results.get(i));
+        }
+    }
+
+    @Test
+    public void listener() {
+        List<SoapCallEvent> events = new ArrayList<>();
+        HttpClientSoapClient listened = client.withListener(events::add);
+
+        assertEcho("Hello", listened.execute(echoRequest("Hello")));
+
+        assertEquals(1, events.size());
+        SoapCallEvent event = events.get(0);
+        assertTrue(event.isSuccess());
+        assertEquals(200, event.statusCode);
+        assertEquals("http://echo/Echo/echo", event.action.action);
+        assertTrue(event.requestBytes > 0);
+        assertTrue(event.responseBytes > 0);
+        assertTrue(event.serializeNanos >= 0);
+        assertEquals(-1, event.connectNanos);
+        assertTrue(event.timeToFirstByteNanos > 0);
+        assertTrue(event.totalNanos >= event.serializeNanos + event.timeToFirstByteNanos + event.responseNanos);
+    }
+
+    @Test
+    public void restrictedHeaderIsFailure() throws Exception {
+        List<SoapCallEvent> events = new ArrayList<>();
+        HttpClientSoapClient listened = client.withListener(events::add);
+        SoapRequest req = echoRequest("Hello").setHttpHeader("Connection", "close");
+
+        Result<SoapFault, SoapDocument> result = listened.execute(req);
+        assertEquals(Optional.of(IllegalArgumentException.class), result.swap().toOptional().flatMap(fault -> fault.cause).map(Object::getClass));
+        Result<SoapFault, SoapDocument> async = listened.executeAsync(req).toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertTrue(async.isFailure());
+        assertEquals(2, events.size());
+        assertFalse(events.get(1).isSuccess());
+    }
+
+    @Test
+    public void requestHeadersAreReplaced() throws Exception {
+        List<List<String>> received = new CopyOnWriteArrayList<>();
+        server.createContext("/headers", exchange -> {
+            received.add(exchange.getRequestHeaders().get("SOAPAction"));
+            received.add(exchange.getRequestHeaders().get("Content-Type"));
+            exchange.getRequestBody().close();
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        URI headers = URI.create(String.format("http://localhost:%s/headers", server.getAddress().getPort()));
+        SoapRequest req = echoRequest("Hello").setHttpHeader("SOAPAction", "\"other\"").setHttpHeader("Content-Type", "text/plain");
+
+        new HttpClientSoapClient(HttpClient.newHttpClient(), headers).execute(req);
+        assertEquals(Arrays.asList(Collections.singletonList("\"http://echo/Echo/echo\""), Collections.singletonList("text/xml; charset=utf-8")), received);
+    }
+
+    @Test
+    public void cancelledCallIsRecorded() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        server.createContext("/stall", exchange -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ignore) {
+            }
+            exchange.close();
+        });
+        List<SoapCallEvent> events = new CopyOnWriteArrayList<>();
+        URI stall = URI.create(String.format("http://localhost:%s/stall", server.getAddress().getPort()));
+        HttpClientSoapClient listened = new HttpClientSoapClient(HttpClient.newHttpClient(), stall).withListener(events::add);
+        try {
+            CompletableFuture<Result<SoapFault, SoapDocument>> call = listened.executeAsync(echoRequest("Hello")).toCompletableFuture();
+            assertTrue(call.cancel(true));
+            assertEquals(1, events.size());
+            assertEquals(Optional.of(CancellationException.class), events.get(0).fault.flatMap(fault -> fault.cause).map(Object::getClass));
+        } finally {
+            release.countDown();
+        }
+        Thread.sleep(100);
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void flightRecorderEvents() throws Exception {
+        Path dump = Files.createTempFile("shampoo", ".jfr");
+        SoapDocument.setListener(JfrSoapDocumentListener.INSTANCE);
+        try (Recording recording = new Recording()) {
+            recording.enable("no.storebrand.shampoo.SoapCall");
+            recording.enable("no.storebrand.shampoo.Parse");
+            recording.enable("no.storebrand.shampoo.Serialize");
+            recording.start();
+            assertEcho("Hello", client.withListener(JfrSoapClientListener.INSTANCE).execute(echoRequest("Hello")));
+            recording.stop();
+            recording.dump(dump);
+
+            List<RecordedEvent> recorded = RecordingFile.readAllEvents(dump);
+            List<RecordedEvent> events = recorded.stream()
+                    .filter(e -> e.getEventType().getName().equals("no.storebrand.shampoo.SoapCall"))
+                    .collect(Collectors.toList());
+            assertEquals(1, events.size());
+            RecordedEvent event = events.get(0);
+            assertEquals("http://echo/Echo/echo", event.getString("action"));
+            assertEquals(200, event.getInt("statusCode"));
+            assertNull(event.getString("faultCode"));
+            assertTrue(event.getLong("responseBytes") > 0);
+            assertTrue(event.getDuration("total").toNanos() > 0);
+            // the event spans the call, so it starts before and lasts at least as long as the recorded phases
+            assertTrue(event.getDuration().compareTo(event.getDuration("total")) >= 0);
+
+            for (String name : Arrays.asList("no.storebrand.shampoo.Parse", "no.storebrand.shampoo.Serialize")) {
+                List<RecordedEvent> documents = recorded.stream()
+                        .filter(e -> e.getEventType().getName().equals(name))
+                        .collect(Collectors.toList());
+                assertFalse(name, documents.isEmpty());
+                RecordedEvent document = documents.get(0);
+                assertTrue(name, document.getLong("bytes") > 0);
+                assertNull(name, document.getString("faultCode"));
+                assertFalse(name, document.getStartTime().isBefore(event.getStartTime()));
+                assertFalse(name, document.getEndTime().isAfter(event.getEndTime()));
+            }
+        } finally {
+            SoapDocument.setListener(SoapDocumentListener.NONE);
+            Files.deleteIfExists(dump);
+        }
+    }
+
+    @Test
+    public void virtualThreadsDoNotPin() throws Exception {
+        Assume.assumeTrue("virtual threads require Java 21", Runtime.version().feature() >= 21);
+        int threads = 10_000;
+        ExecutorService serverThreads = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), threads);
+        server.createContext("/", EchoServer::echo);
+        server.setExecutor(serverThreads);
+        server.start();
+        ExecutorService virtualThreads = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        // a call in flight holds a socket at both ends, so where the process may not open two per thread, as in some
+        // sandboxes, the calls in flight are bounded by the file descriptors left. Elsewhere all the calls run at once.
+        UnixOperatingSystemMXBean os = (UnixOperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        Semaphore sockets = new Semaphore((int) Math.min(threads, (os.getMaxFileDescriptorCount() - os.getOpenFileDescriptorCount()) / 2 - 512));
+        Path dump = Files.createTempFile("shampoo", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+            recording.start();
+            HttpClientSoapClient virtualClient = new HttpClientSoapClient(HttpClient.newHttpClient(), URI.create(String.format("http://localhost:%s", server.getAddress().getPort())));
+            List<Future<Result<SoapFault, SoapDocument>>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                SoapRequest req = echoRequest("Hello " + i);
+                results.add(virtualThreads.submit(() -> {
+                    sockets.acquire();
+                    try {
+                        return virtualClient.execute(req);
+                    } finally {
+                        sockets.release();
+                    }
+                }));
+            }
+            for (int i = 0; i < threads; i++) {
+                assertEcho("Hello " + i, results.get(i).get(60, TimeUnit.SECONDS));
+            }
+            recording.stop();
+            recording.dump(dump);
+
+            List<RecordedEvent> pinned = RecordingFile.readAllEvents(dump).stream()
+                    .filter(e -> e.getEventType().getName().equals("jdk.VirtualThreadPinned"))
+                    .collect(Collectors.toList());
+            assertEquals(pinned.toString(), 0, pinned.size());
+        } finally {
+            Files.deleteIfExists(dump);
+            virtualThreads.shutdown();
+            server.stop(0);
+            serverThreads.shutdown();
+        }
+    }
+
+    @Test
+    public void requestTimeout() throws Exception {
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException ignore) {
+            }
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            HttpClient httpClient = HttpClientSoapClient.newHttpClient(Duration.ofSeconds(1), executor);
+            URI slow = URI.create(String.format("http://localhost:%s/slow", server.getAddress().getPort()));
+            SoapClient slowClient = new HttpClientSoapClient(httpClient, slow).withRequestTimeout(Duration.ofMillis(200));
+            long start = System.nanoTime();
+            Result<SoapFault, SoapDocument> result = slowClient.execute(echoRequest("Hello"));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1500);
+            assertEquals(Optional.of(SoapFault.Kind.TIMEOUT), result.swap().toOptional().map(SoapFault::kind));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private SoapRequest echoRequest(String input) {
+        return SoapRequest.soap11(
+                SoapBody.from(input, toEchoRequest),
+                Collections.emptyList(),
+                SoapAction.of("http://echo/Echo/echo")
+        );
+    }
+
+    private static void assertEcho(String expected, Result<SoapFault, SoapDocument> responseOrError) {
+        responseOrError.fold(fault -> {
+            System.out.println("fault = " + fault);
+            fail(fault.message);
+            return null;
+        }, success -> {
+            Optional<String> maybeString = success.transform(e -> JDOM2Utils.getChildText(e, "return"));
+            assertTrue("Did not match string", maybeString.isPresent());
+            assertEquals(expected, maybeString.get());
+            return null;
+        });
+    }
+}
@@ -8,12 +8,16 @@ import java.util.Objects;
 public final class Attachment {
     public final ContentId id;
     public final MediaType contentType;
-    public final ByteString data;
+    public final AttachmentBody body;
 
-    public Attachment(ContentId id, MediaType contentType, ByteString data) {
+    public Attachment(ContentId id, MediaType contentType, AttachmentBody body) {
         this.id = id;
         this.contentType = contentType;
-        this.data = data;
+        this.body = body;
+    }
+
+    public Attachment(ContentId id, MediaType contentType, ByteString data) {
+        this(id, contentType, AttachmentBody.of(data));
     }
 
     @Override
@@ -23,11 +27,11 @@ public final class Attachment {
         Attachment that = (Attachment) o;
         return Objects.equals(id, that.id) &&
                 Objects.equals(contentType, that.contentType) &&
-                Objects.equals(data, that.data);
+                Objects.equals(body, that.body);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, contentType, data);
+        return Objects.hash(id, contentType, body);
     }
 }
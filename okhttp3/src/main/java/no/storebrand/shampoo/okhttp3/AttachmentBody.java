@@ -0,0 +1,191 @@
+package no.storebrand.shampoo.okhttp3;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+import okio.Source;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * The content of an {@link Attachment}. Bytes are only read when {@link #source()} or one of the accessors is called,
+ * so a file-backed body does not occupy heap until it is used.
+ */
+public abstract class AttachmentBody implements Closeable {
+    private AttachmentBody() {
+    }
+
+    public static AttachmentBody of(ByteString data) {
+        return new InMemory(data);
+    }
+
+    /**
+     * A body backed by an existing file, which is left in place when the body is closed.
+     */
+    public static AttachmentBody ofFile(Path file) {
+        return new FileBacked(file, false);
+    }
+
+    static AttachmentBody ofTemporaryFile(Path file) {
+        return new FileBacked(file, true);
+    }
+
+    static AttachmentBody consumed(long size) {
+        return new Consumed(size);
+    }
+
+    /**
+     * The size in bytes, or -1 if unknown.
+     */
+    public abstract long size();
+
+    /**
+     * A new source over the content. The caller must close it.
+     */
+    public abstract Source source() throws IOException;
+
+    /**
+     * The file holding the content, if it is backed by one.
+     */
+    public Optional<Path> file() {
+        return Optional.empty();
+    }
+
+    /**
+     * Reads the whole content into memory.
+     */
+    public ByteString byteString() throws IOException {
+        try (BufferedSource source = Okio.buffer(source())) {
+            return source.readByteString();
+        }
+    }
+
+    /**
+     * A read-only view of the content. File-backed bodies are memory-mapped instead of read into the heap,
+     * which limits them to 2 GB.
+     */
+    public ByteBuffer asByteBuffer() throws IOException {
+        return byteString().asByteBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    private static final class InMemory extends AttachmentBody {
+        private final ByteString data;
+
+        InMemory(ByteString data) {
+            this.data = data;
+        }
+
+        @Override
+        public long size() {
+            return data.size();
+        }
+
+        @Override
+        public Source source() {
+            return new Buffer().write(data);
+        }
+
+        @Override
+        public ByteString byteString() {
+            return data;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return data.equals(((InMemory) o).data);
+        }
+
+        @Override
+        public int hashCode() {
+            return data.hashCode();
+        }
+    }
+
+    private static final class FileBacked extends AttachmentBody {
+        private final Path file;
+        private final boolean deleteOnClose;
+
+        FileBacked(Path file, boolean deleteOnClose) {
+            this.file = file;
+            this.deleteOnClose = deleteOnClose;
+        }
+
+        @Override
+        public long size() {
+            try {
+                return Files.size(file);
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public Source source() throws IOException {
+            return Okio.source(file);
+        }
+
+        @Override
+        public Optional<Path> file() {
+            return Optional.of(file);
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (deleteOnClose) {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return file.equals(((FileBacked) o).file);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file);
+        }
+    }
+
+    private static final class Consumed extends AttachmentBody {
+        private final long size;
+
+        Consumed(long size) {
+            this.size = size;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public Source source() {
+            throw new IllegalStateException("The attachment was streamed to a sink and is no longer available");
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package no.storebrand.shampoo.okhttp3;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Source;
+
+import java.io.IOException;
+
+/**
+ * Copies the attachment from its source into the request sink in segments,
+ * so a file-backed attachment is never loaded into memory.
+ */
+final class AttachmentRequestBody extends RequestBody {
+    private final MediaType contentType;
+    private final AttachmentBody body;
+
+    AttachmentRequestBody(MediaType contentType, AttachmentBody body) {
+        this.contentType = contentType;
+        this.body = body;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+        return body.size();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        try (Source source = body.source()) {
+            sink.writeAll(source);
+        }
+    }
+}
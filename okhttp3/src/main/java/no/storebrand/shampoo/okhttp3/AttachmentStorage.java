@@ -0,0 +1,65 @@
+package no.storebrand.shampoo.okhttp3;
+
+import okhttp3.MediaType;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Sink;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Function;
+
+/**
+ * Decides where the content of each received attachment ends up.
+ */
+@FunctionalInterface
+public interface AttachmentStorage {
+    /**
+     * Consumes the content of one part. The source must be read to the end or left for the caller to drain,
+     * and must not be used after returning.
+     */
+    AttachmentBody store(ContentId id, MediaType contentType, BufferedSource content) throws IOException;
+
+    static AttachmentStorage inMemory() {
+        return (id, contentType, content) -> AttachmentBody.of(content.readByteString());
+    }
+
+    /**
+     * Keeps parts up to {@code threshold} bytes in memory, and writes larger parts to temporary files in {@code directory}.
+     * The files are deleted when the attachment, or the {@link MTOM} holding it, is closed.
+     */
+    static AttachmentStorage spillToDisk(long threshold, Path directory) {
+        return (id, contentType, content) -> {
+            Buffer head = new Buffer();
+            while (head.size() <= threshold) {
+                if (content.read(head, Math.max(threshold + 1 - head.size(), 1)) == -1) {
+                    return AttachmentBody.of(head.readByteString());
+                }
+            }
+            Path file = Files.createTempFile(directory, "shampoo-attachment", ".bin");
+            try (BufferedSink sink = Okio.buffer(Okio.sink(file))) {
+                sink.writeAll(head);
+                sink.writeAll(content);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+            return AttachmentBody.ofTemporaryFile(file);
+        };
+    }
+
+    /**
+     * Streams each part to the sink returned for its id. The sink is closed after the part is written,
+     * and the resulting attachment only records the number of bytes written.
+     */
+    static AttachmentStorage streamTo(Function<ContentId, Sink> sinks) {
+        return (id, contentType, content) -> {
+            try (BufferedSink sink = Okio.buffer(sinks.apply(id))) {
+                return AttachmentBody.consumed(sink.writeAll(content));
+            }
+        };
+    }
+}
@@ -0,0 +1,42 @@
+package no.storebrand.shampoo.okhttp3;
+
+import no.storebrand.shampoo.WireCapture;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Tees the body through a {@link WireCapture} as it is written, and hands the capture on once it is complete.
+ */
+final class CapturingRequestBody extends RequestBody {
+    private final RequestBody delegate;
+    private final Consumer<WireCapture> onWritten;
+
+    CapturingRequestBody(RequestBody delegate, Consumer<WireCapture> onWritten) {
+        this.delegate = delegate;
+        this.onWritten = onWritten;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return delegate.contentType();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return delegate.contentLength();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        WireCapture capture = WireCapture.create();
+        BufferedSink teed = Okio.buffer(Okio.sink(capture.tee(sink.outputStream())));
+        delegate.writeTo(teed);
+        teed.emit();
+        onWritten.accept(capture);
+    }
+}
@@ -1,6 +1,11 @@
 package no.storebrand.shampoo.okhttp3;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
 
 public final class ContentId {
     public final String value;
@@ -22,6 +27,43 @@ public final class ContentId {
         return Objects.hash(value);
     }
 
+    public static ContentId random() {
+        return new ContentId("<" + UUID.randomUUID() + "@shampoo>");
+    }
+
+    /**
+     * The value as a Content-ID header, enclosed in angle brackets.
+     */
+    public String header() {
+        return value.startsWith("<") ? value : "<" + value + ">";
+    }
+
+    /**
+     * The value as a {@code cid:} URL, used to reference the part from an {@code xop:Include}.
+     */
+    public String href() {
+        String id = value.startsWith("<") && value.endsWith(">") ? value.substring(1, value.length() - 1) : value;
+        try {
+            return "cid:" + URLEncoder.encode(id, "UTF-8").replace("+", "%20").replace("%40", "@");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parses a {@code cid:} URL, as found in the href of an {@code xop:Include}.
+     */
+    public static Optional<ContentId> fromHref(String href) {
+        if (href == null || !href.regionMatches(true, 0, "cid:", 0, 4)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(new ContentId("<" + URLDecoder.decode(href.substring(4).replace("+", "%2B"), "UTF-8") + ">"));
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
     public String getValue() {
         return value;
     }
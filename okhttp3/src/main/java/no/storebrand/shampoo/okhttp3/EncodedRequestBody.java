@@ -0,0 +1,33 @@
+package no.storebrand.shampoo.okhttp3;
+
+import no.storebrand.shampoo.EncodedRequest;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.IOException;
+
+final class EncodedRequestBody extends RequestBody {
+    private final MediaType contentType;
+    private final EncodedRequest encoded;
+
+    EncodedRequestBody(MediaType contentType, EncodedRequest encoded) {
+        this.contentType = contentType;
+        this.encoded = encoded;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+        return encoded.size();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        encoded.writeTo(sink.outputStream());
+    }
+}
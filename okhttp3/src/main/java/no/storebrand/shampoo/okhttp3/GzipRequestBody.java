@@ -0,0 +1,78 @@
+package no.storebrand.shampoo.okhttp3;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+
+import java.io.IOException;
+
+/**
+ * Compresses the body with gzip. A body of known length is compressed once into a buffer, so that it is still sent
+ * with a Content-Length. A streamed body is compressed into the request sink as it is written.
+ */
+final class GzipRequestBody extends RequestBody {
+    private final RequestBody delegate;
+    private Buffer buffered;
+    private boolean measured = false;
+
+    GzipRequestBody(RequestBody delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return delegate.contentType();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        if (!measured) {
+            if (delegate.contentLength() != -1) {
+                buffered = new Buffer();
+                compress(buffered);
+            }
+            measured = true;
+        }
+        return buffered == null ? -1 : buffered.size();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        if (contentLength() != -1) {
+            // copied, as the body is written again when the request is retried
+            buffered.copyTo(sink.buffer(), 0, buffered.size());
+            sink.emitCompleteSegments();
+        } else {
+            compress(sink);
+        }
+    }
+
+    private void compress(BufferedSink sink) throws IOException {
+        // closing the gzip sink writes the trailer, but must not close the request sink
+        GzipSink gzipSink = new GzipSink(new NonClosingSink(sink));
+        BufferedSink gzip = Okio.buffer(gzipSink);
+        try {
+            delegate.writeTo(gzip);
+        } catch (IOException | RuntimeException e) {
+            // the trailer is not written after a failure, but the native memory of the deflater is released
+            gzipSink.deflater().end();
+            throw e;
+        }
+        gzip.close();
+    }
+
+    private static final class NonClosingSink extends ForwardingSink {
+        NonClosingSink(BufferedSink delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
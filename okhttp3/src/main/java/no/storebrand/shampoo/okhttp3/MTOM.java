@@ -1,11 +1,15 @@
 package no.storebrand.shampoo.okhttp3;
 
+import no.storebrand.shampoo.FromElement;
 import no.storebrand.shampoo.Result;
 import no.storebrand.shampoo.SoapDocument;
 import no.storebrand.shampoo.SoapFault;
 import okhttp3.MediaType;
-import okio.ByteString;
+import okio.BufferedSource;
+import okio.Okio;
+import org.jdom2.Element;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
@@ -13,13 +17,44 @@ import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public final class MTOM {
+public final class MTOM implements Closeable {
+    public static final int DEFAULT_BUFFER_SIZE = MultipartStream.DEFAULT_BUFSIZE;
+
     public final SoapDocument document;
     public final List<Attachment> attachments;
+    private final Map<ContentId, Attachment> byId;
 
     public MTOM(SoapDocument document, List<Attachment> attachments) {
         this.document = document;
         this.attachments = attachments;
+        this.byId = new HashMap<>(attachments.size() * 2);
+        for (Attachment attachment : attachments) {
+            byId.putIfAbsent(key(attachment.id), attachment);
+        }
+    }
+
+    public Optional<Attachment> attachment(ContentId id) {
+        return Optional.ofNullable(byId.get(key(id)));
+    }
+
+    /**
+     * Looks up the attachment referenced by an {@code xop:Include}, or by an element whose content is one.
+     * The content of the attachment is not read until it is used.
+     */
+    public Optional<Attachment> resolve(Element element) {
+        return XOP.contentId(element).flatMap(this::attachment);
+    }
+
+    /**
+     * A {@link FromElement} for use when transforming the document, such as
+     * {@code getChild(e, "content").flatMap(mtom.resolver()::fromElement)}.
+     */
+    public FromElement<Attachment> resolver() {
+        return this::resolve;
+    }
+
+    private static ContentId key(ContentId id) {
+        return new ContentId(id.header());
     }
 
     @Override
@@ -37,33 +72,87 @@ public final class MTOM {
     }
 
     public static Result<SoapFault, MTOM> fromInputStream(String contentType, InputStream inputStream) throws IOException {
+        return fromInputStream(contentType, inputStream, AttachmentStorage.inMemory());
+    }
+
+    /**
+     * Reads a multipart response, handing the content of each attachment to {@code storage}.
+     * The XOP part is parsed directly from the stream.
+     */
+    public static Result<SoapFault, MTOM> fromInputStream(String contentType, InputStream inputStream, AttachmentStorage storage) throws IOException {
+        return fromInputStream(contentType, inputStream, storage, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize the size of the buffer the multipart boundaries are searched in.
+     *                   Larger buffers mean fewer reads from the stream for large binary parts.
+     */
+    public static Result<SoapFault, MTOM> fromInputStream(String contentType, InputStream inputStream, AttachmentStorage storage, int bufferSize) throws IOException {
         Map<String, String> parameters = parseContentTypeParameters(contentType);
-        MultipartStream stream = new MultipartStream(inputStream, parameters.get("boundary").getBytes(StandardCharsets.UTF_8), MultipartStream.DEFAULT_BUFSIZE);
+        MultipartStream stream = new MultipartStream(inputStream, parameters.get("boundary").getBytes(StandardCharsets.UTF_8), bufferSize);
 
         Result<SoapFault, SoapDocument> parsed = Result.failure(SoapFault.parse("No XOP data found"));
 
         ArrayList<Attachment> list = new ArrayList<>();
 
-        boolean nextPart = stream.skipPreamble();
-        while (nextPart) {
-            Map<String, List<String>> headers = parseHeaders(stream.readHeaders());
-            String ctHeader = headers.get("content-type").get(0);
-            String idHeader = headers.get("content-id").get(0);
-            MediaType type = MediaType.parse(ctHeader);
-            // create some output stream
-            ByteString data = stream.readBody().readByteString();
-
-            if (isCompatible(type, MediaType.parse("application/xop+xml"))) {
-                parsed = SoapDocument.fromString(data.utf8());
-            } else {
-                list.add(new Attachment(new ContentId(idHeader), type, data));
+        try {
+            boolean nextPart = stream.skipPreamble();
+            while (nextPart) {
+                Map<String, List<String>> headers = parseHeaders(stream.readHeaders());
+                String ctHeader = headers.get("content-type").get(0);
+                String idHeader = headers.get("content-id").get(0);
+                MediaType type = MediaType.parse(ctHeader);
+
+                // closing the part skips any content left unread
+                try (InputStream part = stream.newInputStream()) {
+                    if (isCompatible(type, MediaType.parse("application/xop+xml"))) {
+                        parsed = SoapDocument.fromStream(part);
+                    } else {
+                        ContentId id = new ContentId(idHeader);
+                        BufferedSource source = Okio.buffer(Okio.source(part));
+                        list.add(new Attachment(id, type, storage.store(id, type, source)));
+                    }
+                }
+                nextPart = stream.readBoundary();
             }
-            nextPart = stream.readBoundary();
+        } catch (IOException | RuntimeException e) {
+            closeAll(list);
+            throw e;
         }
 
+        if (parsed.isFailure()) {
+            closeAll(list);
+        }
         return parsed.map(doc -> new MTOM(doc, Collections.unmodifiableList(list)));
     }
 
+    /**
+     * Closes the attachments, which deletes any temporary files they were spilled to.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Attachment attachment : attachments) {
+            try {
+                attachment.body.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void closeAll(List<Attachment> attachments) {
+        for (Attachment attachment : attachments) {
+            try {
+                attachment.body.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
     private static boolean isCompatible(MediaType type, MediaType toCheck) {
         return type.type().equals(toCheck.type()) && (type.subtype().equals("*") || type.subtype().equals(toCheck.subtype()));
     }
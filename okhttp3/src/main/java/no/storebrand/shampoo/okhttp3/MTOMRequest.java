@@ -0,0 +1,61 @@
+package no.storebrand.shampoo.okhttp3;
+
+import no.storebrand.shampoo.SoapDocument;
+import no.storebrand.shampoo.SoapRequest;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A request sent as a multipart/related XOP package. The envelope references each attachment with
+ * {@link XOP#include(ContentId)}, and the attachments are written as raw binary parts rather than inlined as base64.
+ */
+public final class MTOMRequest {
+    private static final ContentId ROOT = new ContentId("<root.message@shampoo>");
+
+    public final SoapRequest request;
+    public final List<Attachment> attachments;
+
+    private MTOMRequest(SoapRequest request, List<Attachment> attachments) {
+        this.request = request;
+        this.attachments = attachments;
+    }
+
+    public static MTOMRequest of(SoapRequest request) {
+        return new MTOMRequest(request, Collections.emptyList());
+    }
+
+    public MTOMRequest attach(Attachment attachment) {
+        List<Attachment> copy = new ArrayList<>(attachments);
+        copy.add(attachment);
+        return new MTOMRequest(request, Collections.unmodifiableList(copy));
+    }
+
+    RequestBody toRequestBody() {
+        String startInfo = request.soapDocument.ns.equals(SoapDocument.SOAP_12) ? "application/soap+xml" : "text/xml";
+        MediaType root = MediaType.parse(String.format("application/xop+xml; charset=utf-8; type=\"%s\"", startInfo));
+        MultipartBody.Builder builder = new MultipartBody.Builder()
+                .setType(MediaType.parse(String.format(
+                        "multipart/related; type=\"application/xop+xml\"; start=\"%s\"; start-info=\"%s\"", ROOT.header(), startInfo)))
+                .addPart(Headers.of("Content-ID", ROOT.header()), rootBody(root));
+        for (Attachment attachment : attachments) {
+            builder.addPart(
+                    Headers.of("Content-ID", attachment.id.header(), "Content-Transfer-Encoding", "binary"),
+                    new AttachmentRequestBody(attachment.contentType, attachment.body)
+            );
+        }
+        return builder.build();
+    }
+
+    private RequestBody rootBody(MediaType root) {
+        if (request.encoded.isPresent()) {
+            return new EncodedRequestBody(root, request.encoded.get());
+        }
+        return new SoapRequestBody(root, request.soapDocument);
+    }
+}
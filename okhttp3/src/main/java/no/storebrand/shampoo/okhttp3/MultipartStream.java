@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 
 /**
  *
@@ -61,7 +62,7 @@ final class MultipartStream {
     /**
      * The default length of the buffer used for processing a request.
      */
-    public static final int DEFAULT_BUFSIZE = 4096;
+    public static final int DEFAULT_BUFSIZE = 64 * 1024;
 
     /**
      * A byte sequence that marks the end of <code>header-part</code>
@@ -109,6 +110,12 @@ final class MultipartStream {
      */
     private byte[] boundary;
 
+    /**
+     * The Boyer-Moore-Horspool shift for each byte value, when it is the
+     * last byte of the window compared against the boundary.
+     */
+    private final int[] skipTable = new int[256];
+
     /**
      * The length of the buffer used for processing the request.
      */
@@ -183,6 +190,7 @@ final class MultipartStream {
                 BOUNDARY_PREFIX.length);
         System.arraycopy(boundary, 0, this.boundary, BOUNDARY_PREFIX.length,
                 boundary.length);
+        computeSkipTable();
 
         head = 0;
         tail = 0;
@@ -245,13 +253,12 @@ final class MultipartStream {
      *                                  fails to follow required syntax.
      */
     public boolean readBoundary() throws IOException {
-        byte[] marker = new byte[2];
         boolean nextChunk = false;
 
         head += boundaryLength;
         try {
-            marker[0] = readByte();
-            if (marker[0] == LF) {
+            byte first = readByte();
+            if (first == LF) {
                 // Work around IE5 Mac bug with input type=image.
                 // Because the boundary delimiter, not including the trailing
                 // CRLF, must not appear within any file (RFC 2046, section
@@ -261,10 +268,10 @@ final class MultipartStream {
                 return true;
             }
 
-            marker[1] = readByte();
-            if (arrayequals(marker, STREAM_TERMINATOR, 2)) {
+            byte second = readByte();
+            if (first == STREAM_TERMINATOR[0] && second == STREAM_TERMINATOR[1]) {
                 nextChunk = false;
-            } else if (arrayequals(marker, FIELD_SEPARATOR, 2)) {
+            } else if (first == FIELD_SEPARATOR[0] && second == FIELD_SEPARATOR[1]) {
                 nextChunk = true;
             } else {
                 throw new MultipartStream.MalformedStreamException(
@@ -303,6 +310,7 @@ final class MultipartStream {
         }
         System.arraycopy(boundary, 0, this.boundary, BOUNDARY_PREFIX.length,
                 boundary.length);
+        computeSkipTable();
     }
 
     public void skipHeaders() throws IOException {
@@ -389,13 +397,25 @@ final class MultipartStream {
      */
     public int readBodyData(OutputStream output)
             throws IOException {
-        final InputStream istream = newInputStream();
-        byte[] buffer = new byte[DEFAULT_BUFSIZE];
-        int len;
-        while ((len = istream.read(buffer)) != -1) {
-            output.write(buffer, 0, len);
+        final ItemInputStream istream = newInputStream();
+        if (output == null) {
+            istream.close();
+            return (int) istream.getBytesRead();
+        }
+        // write straight from the internal buffer instead of copying through another one
+        int total = 0;
+        for (;;) {
+            int av = istream.available();
+            if (av == 0) {
+                av = istream.makeAvailable();
+                if (av == 0) {
+                    return total;
+                }
+            }
+            output.write(buffer, head, av);
+            head += av;
+            total += av;
         }
-        return len;
     }
 
     /**
@@ -433,6 +453,7 @@ final class MultipartStream {
         // First delimiter may be not preceeded with a CRLF.
         System.arraycopy(boundary, 2, boundary, 0, boundary.length - 2);
         boundaryLength = boundary.length - 2;
+        computeSkipTable();
         try {
             // Discard all data up to the delimiter.
             discardBodyData();
@@ -448,6 +469,7 @@ final class MultipartStream {
             boundaryLength = boundary.length;
             boundary[0] = CR;
             boundary[1] = LF;
+            computeSkipTable();
         }
     }
 
@@ -498,31 +520,47 @@ final class MultipartStream {
      * Searches for the <code>boundary</code> in the <code>buffer</code>
      * region delimited by <code>head</code> and <code>tail</code>.
      *
+     * <p>Uses Boyer-Moore-Horspool, so that for binary content most windows
+     * are rejected by a single comparison and skipped by up to the length
+     * of the boundary.
+     *
      * @return The position of the boundary found, counting from the
      *         beginning of the <code>buffer</code>, or <code>-1</code> if
      *         not found.
      */
     protected int findSeparator() {
-        int first;
-        int match = 0;
-        int maxpos = tail - boundaryLength;
-        for (first = head; first <= maxpos && match != boundaryLength; first++) {
-            first = findByte(boundary[0], first);
-            if (first == -1 || first > maxpos) {
-                return -1;
-            }
-            for (match = 1; match < boundaryLength; match++) {
-                if (buffer[first + match] != boundary[match]) {
-                    break;
+        final int last = boundaryLength - 1;
+        final byte lastByte = boundary[last];
+        final int maxpos = tail - boundaryLength;
+        int first = head;
+        while (first <= maxpos) {
+            byte b = buffer[first + last];
+            if (b == lastByte) {
+                int match = last - 1;
+                while (match >= 0 && buffer[first + match] == boundary[match]) {
+                    match--;
+                }
+                if (match < 0) {
+                    return first;
                 }
             }
-        }
-        if (match == boundaryLength) {
-            return first - 1;
+            first += skipTable[b & 0xff];
         }
         return -1;
     }
 
+    /**
+     * Computes the shifts for {@link #findSeparator()} from the first
+     * <code>boundaryLength</code> bytes of the boundary.
+     */
+    private void computeSkipTable() {
+        final int last = boundaryLength - 1;
+        Arrays.fill(skipTable, boundaryLength);
+        for (int i = 0; i < last; i++) {
+            skipTable[boundary[i] & 0xff] = last - i;
+        }
+    }
+
     /**
      * Thrown to indicate that the input stream fails to follow the
      * required syntax.
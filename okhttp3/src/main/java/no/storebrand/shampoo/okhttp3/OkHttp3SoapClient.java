@@ -2,23 +2,53 @@ package no.storebrand.shampoo.okhttp3;
 
 import no.storebrand.shampoo.*;
 import okhttp3.*;
+import okio.BufferedSource;
+import okio.Okio;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.util.Collections;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 public final class OkHttp3SoapClient implements SoapClient {
     private final Call.Factory client;
     private final URI apiURI;
+    private final SoapClientListener listener;
+    private final RequestCompression compression;
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     public OkHttp3SoapClient(Call.Factory client, URI apiURI) {
+        this(client, apiURI, SoapClientListener.NONE, RequestCompression.NONE);
+    }
+
+    private OkHttp3SoapClient(Call.Factory client, URI apiURI, SoapClientListener listener, RequestCompression compression) {
         this.client = client;
         this.apiURI = apiURI;
+        this.listener = listener;
+        this.compression = compression;
+    }
+
+    /**
+     * OkHttp does not expose connection setup to a call, so the connect phase of the events is always -1.
+     */
+    public OkHttp3SoapClient withListener(SoapClientListener listener) {
+        return new OkHttp3SoapClient(client, apiURI, listener, compression);
+    }
+
+    /**
+     * Compresses SOAP requests, but not multipart MTOM requests, as attachments are usually compressed already.
+     * Responses are decompressed by OkHttp, which asks for gzip unless the request has an Accept-Encoding header.
+     */
+    public OkHttp3SoapClient withCompression(RequestCompression compression) {
+        return new OkHttp3SoapClient(client, apiURI, listener, compression);
     }
 
     @Override
@@ -26,59 +56,235 @@ public final class OkHttp3SoapClient implements SoapClient {
         return request(req, (contentType, rb) -> soapDoc(req, rb));
     }
 
-    public Result<SoapFault, MTOM> executeMTOM(SoapRequest req) {
+    @Override
+    public CompletionStage<Result<SoapFault, SoapDocument>> executeAsync(SoapRequest req) {
+        return requestAsync(req, (contentType, rb) -> soapDoc(req, rb));
+    }
+
+    /**
+     * Decodes the response with a {@link SoapStreamReader}, which is handed to {@code f} while the response is open.
+     */
+    public <A> Result<SoapFault, A> executeStreaming(SoapRequest req, Function<SoapStreamReader, A> f) {
         return request(req, (contentType, rb) -> {
-            if ("multipart".equals(rb.contentType().type())) {
-                return MTOM.fromInputStream(contentType, rb.byteStream());
-            } else {
-                return soapDoc(req, rb).map(doc -> new MTOM(doc, Collections.emptyList()));
+            if (exists(Optional.ofNullable(rb.contentType()), (ct -> ct.subtype().contains("xml")))) {
+                return SoapStreamReader.read(rb.byteStream(), f);
             }
+            return Result.failure(SoapFault.server("Not XML from " + req.action.action));
         });
     }
 
+    public Result<SoapFault, MTOM> executeMTOM(SoapRequest req) {
+        return executeMTOM(req, AttachmentStorage.inMemory());
+    }
+
+    /**
+     * Hands the content of each attachment to {@code storage}, instead of keeping it in memory.
+     */
+    public Result<SoapFault, MTOM> executeMTOM(SoapRequest req, AttachmentStorage storage) {
+        return request(req, (contentType, rb) -> mtom(req, contentType, rb, storage));
+    }
+
+    /**
+     * Sends the request as a multipart/related XOP package. The response is read as for {@link #executeMTOM(SoapRequest)}.
+     */
+    public Result<SoapFault, MTOM> executeMTOM(MTOMRequest req) {
+        return executeMTOM(req, AttachmentStorage.inMemory());
+    }
+
+    public Result<SoapFault, MTOM> executeMTOM(MTOMRequest req, AttachmentStorage storage) {
+        return request(req.request, req::toRequestBody, (contentType, rb) -> mtom(req.request, contentType, rb, storage));
+    }
+
+    public CompletionStage<Result<SoapFault, MTOM>> executeMTOMAsync(SoapRequest req) {
+        return executeMTOMAsync(req, AttachmentStorage.inMemory());
+    }
+
+    public CompletionStage<Result<SoapFault, MTOM>> executeMTOMAsync(SoapRequest req, AttachmentStorage storage) {
+        return requestAsync(req, (contentType, rb) -> mtom(req, contentType, rb, storage));
+    }
+
+    private Result<SoapFault, MTOM> mtom(SoapRequest req, String contentType, ResponseBody rb, AttachmentStorage storage) throws IOException {
+        if ("multipart".equals(rb.contentType().type())) {
+            return MTOM.fromInputStream(contentType, rb.byteStream(), storage);
+        } else {
+            return soapDoc(req, rb).map(doc -> new MTOM(doc, Collections.emptyList()));
+        }
+    }
+
     private Result<SoapFault, SoapDocument> soapDoc(SoapRequest req, ResponseBody rb) throws IOException {
         if (exists(Optional.ofNullable(rb.contentType()), (ct -> ct.subtype().contains("xml")))) {
             if (logger.isDebugEnabled()) {
-                String data = rb.string();
-                logger.debug("response data is:\n{}", data);
-                return SoapDocument.fromString(data);
+                WireCapture capture = WireCapture.create();
+                Result<SoapFault, SoapDocument> result = SoapDocument.fromStream(capture.tee(rb.byteStream()));
+                logger.debug("response data is:\n{}", capture);
+                return result;
             } else {
                 return SoapDocument.fromStream(rb.byteStream());
             }
         } else {
             if (logger.isDebugEnabled()) {
-                String data = rb.string();
-                logger.debug("response data is:\n{}", data);
+                logger.debug("response data is:\n{}", head(rb.source()));
             }
             return Result.failure(SoapFault.server("Not XML from " + req.action.action));
         }
     }
 
+    private static WireCapture head(BufferedSource source) throws IOException {
+        source.request(WireCapture.DEFAULT_LIMIT + 1L);
+        byte[] head = source.buffer().snapshot((int) Math.min(source.buffer().size(), WireCapture.DEFAULT_LIMIT + 1L)).toByteArray();
+        WireCapture capture = WireCapture.create();
+        capture.capture(head, 0, head.length);
+        return capture;
+    }
+
     private <A> Result<SoapFault, A> request(SoapRequest req, IOFunction<String, ResponseBody, Result<SoapFault, A>> fromBody) {
+        return request(req, () -> requestBody(req), fromBody);
+    }
+
+    private <A> Result<SoapFault, A> request(SoapRequest req, Supplier<RequestBody> body, IOFunction<String, ResponseBody, Result<SoapFault, A>> fromBody) {
+        SoapCallRecorder recorder = SoapCallRecorder.start(listener, apiURI, req.action);
+        Call call;
+        try {
+            call = newCall(req, body.get(), recorder);
+        } catch (RuntimeException e) {
+            return recorder.finish(Result.failure(SoapFault.fromThrowable("soap:Client", e)));
+        } catch (IOException e) {
+            return recorder.finish(Result.failure(SoapFault.fromThrowable("soap:Server", e)));
+        }
+        // cancelling from the timer thread aborts a call blocked on the connection
+        try (DeadlineTimer timer = DeadlineTimer.start(req, call::cancel)) {
+            if (timer.isExpired()) {
+                recorder.timedOut();
+                return recorder.finish(Result.failure(DeadlineTimer.fault(null)));
+            }
+            try {
+                Response resp = call.execute();
+                return recorder.finish(timer.check(recorder, fromResponse(resp, recorder, fromBody)));
+            } catch (RuntimeException e) {
+                return recorder.finish(timer.check(recorder, Result.failure(SoapFault.fromThrowable("soap:Client", e))));
+            } catch (Exception e) {
+                timeout(recorder, e);
+                return recorder.finish(timer.check(recorder, Result.failure(SoapFault.fromThrowable("soap:Server", e))));
+            }
+        }
+    }
+
+    private <A> CompletionStage<Result<SoapFault, A>> requestAsync(SoapRequest req, IOFunction<String, ResponseBody, Result<SoapFault, A>> fromBody) {
+        CompletableFuture<Result<SoapFault, A>> future = new CompletableFuture<>();
+        SoapCallRecorder recorder = SoapCallRecorder.start(listener, apiURI, req.action);
+        Call call;
+        try {
+            call = newCall(req, requestBody(req), recorder);
+        } catch (RuntimeException e) {
+            future.complete(recorder.finish(Result.failure(SoapFault.fromThrowable("soap:Client", e))));
+            return future;
+        } catch (IOException e) {
+            future.complete(recorder.finish(Result.failure(SoapFault.fromThrowable("soap:Server", e))));
+            return future;
+        }
+        DeadlineTimer timer = DeadlineTimer.start(req, call::cancel);
+        if (timer.isExpired()) {
+            recorder.timedOut();
+            future.complete(recorder.finish(Result.failure(DeadlineTimer.fault(null))));
+            return future;
+        }
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                timeout(recorder, e);
+                future.complete(recorder.finish(timer.check(recorder, Result.failure(SoapFault.fromThrowable("soap:Server", e)))));
+            }
+
+            @Override
+            public void onResponse(Call call, Response resp) {
+                try {
+                    future.complete(recorder.finish(timer.check(recorder, fromResponse(resp, recorder, fromBody))));
+                } catch (RuntimeException e) {
+                    future.complete(recorder.finish(timer.check(recorder, Result.failure(SoapFault.fromThrowable("soap:Client", e)))));
+                } catch (Exception e) {
+                    timeout(recorder, e);
+                    future.complete(recorder.finish(timer.check(recorder, Result.failure(SoapFault.fromThrowable("soap:Server", e)))));
+                }
+            }
+        });
+        future.whenComplete((result, e) -> {
+            timer.close();
+            if (future.isCancelled()) {
+                call.cancel();
+            }
+        });
+        return future;
+    }
+
+    private RequestBody requestBody(SoapRequest req) {
+        if (req.encoded.isPresent()) {
+            return new EncodedRequestBody(MediaType.parse(req.encoded.get().contentType), req.encoded.get());
+        }
+        return new SoapRequestBody(toMediaType(req.soapDocument), req.soapDocument);
+    }
+
+    private Call newCall(SoapRequest req, RequestBody body, SoapCallRecorder recorder) throws IOException {
         if (logger.isInfoEnabled()) {
             logger.info("SOAP request to {} ", apiURI);
             logger.info("Action is '{}'", req.action.action);
         }
         if (logger.isDebugEnabled()) {
-            logger.debug("request is:\n{}", req.soapDocument);
+            body = new CapturingRequestBody(body, capture -> logger.debug("request is:\n{}", capture));
         }
-        try {
-            Request request = new Request.Builder()
-                    .url(HttpUrl.get(apiURI))
-                    .headers(Headers.of(req.headers))
-                    .addHeader("SOAPAction", req.action.format())
-                    .post(RequestBody.create(toMediaType(req.soapDocument), req.soapDocument.toCompactString()))
-                    .build();
-
-            Call call = client.newCall(request);
-            Response resp = call.execute();
-            try (ResponseBody body = resp.body()) {
-                return fromBody.apply(resp.header("Content-Type"), body);
+        boolean gzip = !"multipart".equals(body.contentType().type()) && compression.compress(body.contentLength());
+        if (gzip) {
+            body = new GzipRequestBody(body);
+        }
+        if (recorder.isActive()) {
+            // serializes envelopes small enough to be sent with a Content-Length, larger ones are streamed during the call
+            recorder.serialized(body.contentLength());
+        }
+        Request.Builder request = new Request.Builder()
+                .url(HttpUrl.get(apiURI))
+                .headers(Headers.of(req.headers))
+                .addHeader("SOAPAction", req.encoded.map(e -> e.soapAction).orElseGet(req.action::format))
+                .post(body);
+        if (gzip) {
+            request.header("Content-Encoding", "gzip");
+        }
+
+        return client.newCall(request.build());
+    }
+
+    private <A> Result<SoapFault, A> fromResponse(Response resp, SoapCallRecorder recorder, IOFunction<String, ResponseBody, Result<SoapFault, A>> fromBody) throws IOException {
+        recorder.firstByte(resp.code());
+        try (ResponseBody body = resp.body()) {
+            ResponseBody rb = body;
+            if (recorder.isActive()) {
+                rb = ResponseBody.create(body.contentType(), body.contentLength(), Okio.buffer(Okio.source(recorder.response(body.byteStream()))));
             }
-        } catch (RuntimeException e) {
-            return Result.failure(SoapFault.exception("soap:Client", e));
-        } catch (Exception e) {
-            return Result.failure(SoapFault.exception("soap:Server", e));
+            if (resp.code() >= 400 && exists(Optional.ofNullable(rb.contentType()), (ct -> ct.subtype().contains("xml")))) {
+                return Result.failure(fault(rb, resp.code()));
+            }
+            if (resp.code() >= 400) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("response data is:\n{}", head(rb.source()));
+                }
+                return Result.failure(SoapFault.httpStatus(resp.code()));
+            }
+            return fromBody.apply(resp.header("Content-Type"), rb);
+        }
+    }
+
+    private SoapFault fault(ResponseBody rb, int statusCode) {
+        if (logger.isDebugEnabled()) {
+            WireCapture capture = WireCapture.create();
+            SoapFault fault = SoapDocument.readFault(capture.tee(rb.byteStream()), statusCode);
+            logger.debug("response data is:\n{}", capture);
+            return fault;
+        }
+        return SoapDocument.readFault(rb.byteStream(), statusCode);
+    }
+
+    private static void timeout(SoapCallRecorder recorder, Exception e) {
+        // OkHttp reports socket timeouts as SocketTimeoutException, and other timeouts as InterruptedIOException
+        if (e instanceof InterruptedIOException) {
+            recorder.timedOut();
         }
     }
 
@@ -0,0 +1,55 @@
+package no.storebrand.shampoo.okhttp3;
+
+import no.storebrand.shampoo.SoapDocument;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+
+import java.io.IOException;
+
+/**
+ * Envelopes up to {@link #BUFFER_LIMIT} bytes are serialized once into a buffer and sent with a Content-Length.
+ * Larger envelopes are serialized straight into the request sink and sent chunked, without an intermediate
+ * String or byte array. Small chunked requests are written in several small segments, which Nagle's algorithm
+ * and delayed acknowledgements can hold back for tens of milliseconds.
+ */
+final class SoapRequestBody extends RequestBody {
+    static final int BUFFER_LIMIT = 64 * 1024;
+
+    private final MediaType contentType;
+    private final SoapDocument document;
+    private Buffer buffered;
+    private boolean measured = false;
+
+    SoapRequestBody(MediaType contentType, SoapDocument document) {
+        this.contentType = contentType;
+        this.document = document;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        if (!measured) {
+            Buffer buffer = new Buffer();
+            buffered = document.writeUpTo(buffer.outputStream(), BUFFER_LIMIT) ? buffer : null;
+            measured = true;
+        }
+        return buffered == null ? -1 : buffered.size();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        if (contentLength() != -1) {
+            // copied, as the body is written again when the request is retried
+            buffered.copyTo(sink.buffer(), 0, buffered.size());
+            sink.emitCompleteSegments();
+        } else {
+            document.write(sink.outputStream());
+        }
+    }
+}
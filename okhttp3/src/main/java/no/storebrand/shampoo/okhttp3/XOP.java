@@ -0,0 +1,37 @@
+package no.storebrand.shampoo.okhttp3;
+
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+
+import java.util.Optional;
+
+public final class XOP {
+    public static final Namespace NS = Namespace.getNamespace("xop", "http://www.w3.org/2004/08/xop/include");
+
+    private XOP() {
+    }
+
+    /**
+     * An {@code xop:Include} referencing the attachment, to be placed in the element the attachment is the content of.
+     */
+    public static Element include(ContentId id) {
+        Element include = new Element("Include", NS);
+        include.setAttribute("href", id.href());
+        return include;
+    }
+
+    /**
+     * The id referenced by {@code element}, which is either an {@code xop:Include} or an element whose content is one.
+     */
+    public static Optional<ContentId> contentId(Element element) {
+        Element include = isInclude(element) ? element : element.getChild("Include", NS);
+        if (include == null) {
+            return Optional.empty();
+        }
+        return ContentId.fromHref(include.getAttributeValue("href"));
+    }
+
+    private static boolean isInclude(Element element) {
+        return "Include".equals(element.getName()) && NS.getURI().equals(element.getNamespaceURI());
+    }
+}
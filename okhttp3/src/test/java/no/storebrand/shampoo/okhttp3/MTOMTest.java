@@ -0,0 +1,153 @@
+package no.storebrand.shampoo.okhttp3;
+
+import no.storebrand.shampoo.*;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.ByteString;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static no.storebrand.shampoo.JDOM2Utils.elem;
+import static org.junit.Assert.*;
+
+public class MTOMTest {
+    private static final MediaType XOP_XML = MediaType.parse("application/xop+xml; charset=utf-8; type=\"text/xml\"");
+    private static final MediaType OCTETS = MediaType.parse("application/octet-stream");
+    private static final String ENVELOPE = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+            "<soap:Body><ns:file xmlns:ns=\"http://files\"/></soap:Body></soap:Envelope>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void inMemory() throws IOException {
+        ByteString data = bytes(100);
+        MTOM mtom = read(multipart(data), AttachmentStorage.inMemory());
+
+        assertEquals(1, mtom.attachments.size());
+        Attachment attachment = mtom.attachments.get(0);
+        assertEquals(new ContentId("<attachment>"), attachment.id);
+        assertFalse(attachment.body.file().isPresent());
+        assertEquals(data, attachment.body.byteString());
+        assertEquals("file", mtom.document.body.body.getName());
+    }
+
+    @Test
+    public void spillToDisk() throws IOException {
+        ByteString small = bytes(10);
+        ByteString large = bytes(100_000);
+        Path directory = folder.getRoot().toPath();
+
+        MTOM mtom = read(multipart(small, large), AttachmentStorage.spillToDisk(1024, directory));
+
+        AttachmentBody inMemory = mtom.attachments.get(0).body;
+        AttachmentBody onDisk = mtom.attachments.get(1).body;
+        assertFalse(inMemory.file().isPresent());
+        assertEquals(small, inMemory.byteString());
+        assertTrue(onDisk.file().isPresent());
+        assertEquals(large.size(), onDisk.size());
+        assertEquals(large, onDisk.byteString());
+        assertEquals(large, ByteString.of(onDisk.asByteBuffer()));
+
+        mtom.close();
+        assertFalse(Files.exists(onDisk.file().get()));
+    }
+
+    @Test
+    public void streamToSinks() throws IOException {
+        ByteString data = bytes(50_000);
+        Map<ContentId, Buffer> sinks = new HashMap<>();
+
+        MTOM mtom = read(multipart(data), AttachmentStorage.streamTo(id -> sinks.computeIfAbsent(id, ignore -> new Buffer())));
+
+        assertEquals(data, sinks.get(new ContentId("<attachment>")).readByteString());
+        assertEquals(data.size(), mtom.attachments.get(0).body.size());
+    }
+
+    @Test
+    public void outboundRequest() throws IOException {
+        ByteString data = bytes(200_000);
+        Path file = folder.newFile("upload.bin").toPath();
+        Files.write(file, data.toByteArray());
+        ContentId id = new ContentId("<upload@shampoo>");
+        Namespace ns = Namespace.getNamespace("ns", "http://files");
+
+        SoapRequest request = SoapRequest.soap11(
+                new SoapBody(elem("upload", ns, elem("content", ns, XOP.include(id)))),
+                Collections.emptyList(),
+                SoapAction.of("http://files/upload")
+        );
+        RequestBody body = MTOMRequest.of(request)
+                .attach(new Attachment(id, OCTETS, AttachmentBody.ofFile(file)))
+                .toRequestBody();
+
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        MTOM mtom = MTOM.fromInputStream(body.contentType().toString(), buffer.inputStream()).fold(fault -> {
+            throw new AssertionError(fault.message);
+        }, m -> m);
+
+        Element include = mtom.document.body.body.getChild("content", ns).getChild("Include", XOP.NS);
+        assertEquals("cid:upload@shampoo", include.getAttributeValue("href"));
+        assertEquals(1, mtom.attachments.size());
+        assertEquals(id, mtom.attachments.get(0).id);
+        assertEquals(data, mtom.attachments.get(0).body.byteString());
+        assertTrue(Files.exists(file));
+
+        Optional<Attachment> resolved = mtom.document.body.transform(e -> Optional.ofNullable(e.getChild("content", ns)).flatMap(mtom.resolver()::fromElement));
+        assertTrue(resolved.isPresent());
+        assertSame(mtom.attachments.get(0), resolved.get());
+        assertSame(resolved.get(), mtom.attachment(new ContentId("upload@shampoo")).get());
+    }
+
+    @Test
+    public void unresolvedInclude() {
+        MTOM mtom = new MTOM(null, Collections.singletonList(new Attachment(new ContentId("<a b@shampoo>"), OCTETS, bytes(1))));
+
+        assertTrue(mtom.resolve(XOP.include(new ContentId("<a b@shampoo>"))).isPresent());
+        assertFalse(mtom.resolve(XOP.include(new ContentId("<other@shampoo>"))).isPresent());
+        assertFalse(mtom.resolve(new Element("content")).isPresent());
+    }
+
+    private static MTOM read(MultipartBody body, AttachmentStorage storage) throws IOException {
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        Result<SoapFault, MTOM> result = MTOM.fromInputStream(body.contentType().toString(), buffer.inputStream(), storage);
+        return result.fold(fault -> {
+            throw new AssertionError(fault.message);
+        }, mtom -> mtom);
+    }
+
+    private static MultipartBody multipart(ByteString... attachments) {
+        MultipartBody.Builder builder = new MultipartBody.Builder()
+                .setType(MediaType.parse("multipart/related"))
+                .addPart(Headers.of("Content-ID", "<root>"), RequestBody.create(XOP_XML, ENVELOPE));
+        for (int i = 0; i < attachments.length; i++) {
+            String id = i == 0 ? "<attachment>" : "<attachment" + i + ">";
+            builder.addPart(Headers.of("Content-ID", id), RequestBody.create(OCTETS, attachments[i]));
+        }
+        return builder.build();
+    }
+
+    private static ByteString bytes(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        return ByteString.of(bytes);
+    }
+}
@@ -0,0 +1,94 @@
+package no.storebrand.shampoo.okhttp3;
+
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MultipartStreamTest {
+    private static final String BOUNDARY = "uuid:5f2a9c1e-shampoo";
+
+    @Test
+    public void boundaryAcrossBufferEdges() throws IOException {
+        Random random = new Random(42);
+        List<ByteString> parts = new ArrayList<>();
+        for (int size : new int[]{0, 1, 37, 4095, 4096, 4097, 70_000}) {
+            parts.add(withNearMisses(random, size));
+        }
+        ByteString multipart = multipart("preamble\r\n", parts);
+
+        // sizes just above the minimum force the boundary to straddle refills at every offset
+        int minimum = BOUNDARY.length() + 4 + 1;
+        for (int bufSize = minimum; bufSize < minimum + 40; bufSize++) {
+            assertEquals("buffer size " + bufSize, parts, read(multipart, bufSize));
+        }
+        assertEquals(parts, read(multipart, MultipartStream.DEFAULT_BUFSIZE));
+    }
+
+    @Test
+    public void noPreamble() throws IOException {
+        List<ByteString> parts = new ArrayList<>();
+        parts.add(ByteString.encodeUtf8("first"));
+        parts.add(ByteString.encodeUtf8("second"));
+
+        assertEquals(parts, read(multipart("", parts), 64));
+    }
+
+    @Test
+    public void readBodyDataToStream() throws IOException {
+        ByteString part = withNearMisses(new Random(7), 10_000);
+        MultipartStream stream = new MultipartStream(new Buffer().write(multipart("", Collections.singletonList(part))).inputStream(), BOUNDARY.getBytes(StandardCharsets.UTF_8), 100);
+        assertTrue(stream.skipPreamble());
+        stream.readHeaders();
+
+        Buffer output = new Buffer();
+        assertEquals(part.size(), stream.readBodyData(output.outputStream()));
+        assertEquals(part, output.readByteString());
+        assertFalse(stream.readBoundary());
+    }
+
+    private static List<ByteString> read(ByteString multipart, int bufSize) throws IOException {
+        MultipartStream stream = new MultipartStream(new Buffer().write(multipart).inputStream(), BOUNDARY.getBytes(StandardCharsets.UTF_8), bufSize);
+        List<ByteString> parts = new ArrayList<>();
+        boolean nextPart = stream.skipPreamble();
+        while (nextPart) {
+            stream.readHeaders();
+            parts.add(stream.readBody().readByteString());
+            nextPart = stream.readBoundary();
+        }
+        return parts;
+    }
+
+    private static ByteString multipart(String preamble, List<ByteString> parts) {
+        Buffer buffer = new Buffer().writeUtf8(preamble);
+        for (ByteString part : parts) {
+            buffer.writeUtf8("--" + BOUNDARY + "\r\n")
+                    .writeUtf8("Content-Type: application/octet-stream\r\n\r\n")
+                    .write(part)
+                    .writeUtf8("\r\n");
+        }
+        return buffer.writeUtf8("--" + BOUNDARY + "--\r\n").readByteString();
+    }
+
+    /**
+     * Random bytes sprinkled with prefixes of the delimiter, which must not be mistaken for it.
+     */
+    private static ByteString withNearMisses(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        byte[] delimiter = ("\r\n--" + BOUNDARY).getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i + delimiter.length < size; i += 1000 + random.nextInt(1000)) {
+            int length = 1 + random.nextInt(delimiter.length - 1);
+            System.arraycopy(delimiter, 0, bytes, i, length);
+        }
+        return ByteString.of(bytes);
+    }
+}
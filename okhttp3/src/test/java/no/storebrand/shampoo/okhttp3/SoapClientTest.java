@@ -10,14 +10,24 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.URI;
 import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static no.storebrand.shampoo.JDOM2Utils.elem;
 import static org.junit.Assert.*;
 
-public class SoapClientTest {
+public class SoapClientTest extends SoapClientContract {
+
+    @Override
+    protected SoapClient client(URI uri, RequestCompression compression, Executor executor) {
+        return new OkHttp3SoapClient(new OkHttpClient(), uri).withCompression(compression);
+    }
+
 
     public static int randomPort() {
         try {
@@ -61,4 +71,92 @@ public class SoapClientTest {
             httpClient.dispatcher().executorService().shutdown();
         }
     }
+
+    @Test
+    public void encodedRequest() throws Exception {
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        int port = randomPort();
+        Endpoint endpoint = EchoServer.createEndpoint(port, service);
+        OkHttpClient httpClient = new OkHttpClient();
+
+        SoapClient client = new OkHttp3SoapClient(httpClient, URI.create(String.format("http://localhost:%s", port)));
+        Namespace ns = Namespace.getNamespace("http://echo");
+        try {
+            ToElement<String> toEchoRequest = s -> elem("echoRequest", ns, elem("input", ns, s));
+            SoapRequest req = SoapRequest.soap11(
+                    SoapBody.from("Hello", toEchoRequest),
+                    Collections.emptyList(),
+                    SoapAction.of("http://echo/Echo/echo")
+            ).encode();
+            for (int i = 0; i < 2; i++) {
+                Optional<String> echoed = client.execute(req).toOptional().flatMap(doc -> doc.transform(e -> JDOM2Utils.getChildText(e, "return")));
+                assertEquals(Optional.of("Hello"), echoed);
+            }
+        } finally {
+            endpoint.stop();
+            service.shutdown();
+            httpClient.dispatcher().executorService().shutdown();
+        }
+    }
+
+    @Test
+    public void listener() throws Exception {
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        int port = randomPort();
+        Endpoint endpoint = EchoServer.createEndpoint(port, service);
+        OkHttpClient httpClient = new OkHttpClient();
+        List<SoapCallEvent> events = new CopyOnWriteArrayList<>();
+
+        SoapClient client = new OkHttp3SoapClient(httpClient, URI.create(String.format("http://localhost:%s", port))).withListener(events::add);
+        Namespace ns = Namespace.getNamespace("http://echo");
+        try {
+            ToElement<String> toEchoRequest = s -> elem("echoRequest", ns, elem("input", ns, s));
+            SoapRequest request = SoapRequest.soap11(
+                    SoapBody.from("Hello", toEchoRequest),
+                    Collections.emptyList(),
+                    SoapAction.of("http://echo/Echo/echo")
+            );
+            assertTrue(client.execute(request).isSuccess());
+            assertTrue(client.executeAsync(request).toCompletableFuture().get(10, TimeUnit.SECONDS).isSuccess());
+
+            assertEquals(2, events.size());
+            for (SoapCallEvent event : events) {
+                assertTrue(event.isSuccess());
+                assertEquals(200, event.statusCode);
+                assertTrue(event.requestBytes > 0);
+                assertTrue(event.responseBytes > 0);
+                assertTrue(event.timeToFirstByteNanos > 0);
+                assertTrue(event.totalNanos > 0);
+            }
+        } finally {
+            endpoint.stop();
+            service.shutdown();
+            httpClient.dispatcher().executorService().shutdown();
+        }
+    }
+
+    @Test
+    public void echoServiceAsync() throws Exception {
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        int port = randomPort();
+        Endpoint endpoint = EchoServer.createEndpoint(port, service);
+        OkHttpClient httpClient = new OkHttpClient();
+
+        SoapClient client = new OkHttp3SoapClient(httpClient, URI.create(String.format("http://localhost:%s", port)));
+        Namespace ns = Namespace.getNamespace("http://echo");
+        try {
+            ToElement<String> toEchoRequest = s -> elem("echoRequest", ns, elem("input", ns, s));
+            Result<SoapFault, SoapDocument> responseOrError = client.executeAsync(SoapRequest.soap11(
+                    SoapBody.from("Hello", toEchoRequest),
+                    Collections.emptyList(),
+                    SoapAction.of("http://echo/Echo/echo")
+            )).toCompletableFuture().get(10, TimeUnit.SECONDS);
+            Optional<String> maybeString = responseOrError.toOptional().flatMap(success -> success.transform(e -> JDOM2Utils.getChildText(e, "return")));
+            assertEquals(Optional.of("Hello"), maybeString);
+        } finally {
+            endpoint.stop();
+            service.shutdown();
+            httpClient.dispatcher().executorService().shutdown();
+        }
+    }
 }